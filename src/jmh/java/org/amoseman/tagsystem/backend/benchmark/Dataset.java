@@ -0,0 +1,154 @@
+package org.amoseman.tagsystem.backend.benchmark;
+
+import com.google.common.collect.ImmutableList;
+import org.amoseman.tagsystem.backend.dao.sql.DatabaseConnection;
+import org.amoseman.tagsystem.backend.dao.sql.SQLDatabaseInitializer;
+import org.amoseman.tagsystem.backend.dao.sql.SQLEntityDAO;
+import org.amoseman.tagsystem.backend.dao.sql.SQLTagDAO;
+import org.amoseman.tagsystem.backend.index.TagHierarchyIndex;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A synthetic dataset of a taxonomy and the entities of a single owner tagged with it, stored in SQLite.
+ * Generated datasets are kept on disk and reused by later runs, as the largest take a long time to build, and
+ * benchmarks which write are given a scratch copy, so that the stored dataset stays the same between runs.
+ * Each entity is created with one random tag, and then given a second random tag.
+ */
+public final class Dataset implements AutoCloseable {
+    public static final String OWNER = "benchmark";
+    private static final long SEED = 42;
+    private static final int CHUNK_SIZE = 10_000;
+    private final Taxonomy taxonomy;
+    private final DatabaseConnection connection;
+    private final TagHierarchyIndex hierarchy;
+    private final SQLTagDAO tagDAO;
+    private final SQLEntityDAO entityDAO;
+    private final Path scratch;
+
+    /**
+     * The shape of a taxonomy.
+     */
+    public enum Shape {
+        SHALLOW(2),
+        DEEP(12);
+
+        private final int depth;
+
+        Shape(int depth) {
+            this.depth = depth;
+        }
+    }
+
+    private Dataset(Taxonomy taxonomy, DatabaseConnection connection, TagHierarchyIndex hierarchy, Path scratch) {
+        this.taxonomy = taxonomy;
+        this.connection = connection;
+        this.hierarchy = hierarchy;
+        this.tagDAO = new SQLTagDAO(connection, hierarchy, null);
+        this.entityDAO = new SQLEntityDAO(connection, tagDAO, hierarchy);
+        this.scratch = scratch;
+    }
+
+    /**
+     * Open a dataset, generating it if it has not been generated before.
+     * @param shape the shape of the taxonomy.
+     * @param tags the number of tags.
+     * @param entities the number of entities.
+     * @param cacheHierarchy whether the DAOs cache the tag hierarchy.
+     * @param writable whether to open a scratch copy, which may be written to.
+     * @return the dataset.
+     * @throws Exception if the dataset cannot be generated or opened.
+     */
+    public static Dataset open(Shape shape, int tags, int entities, boolean cacheHierarchy, boolean writable) throws Exception {
+        Taxonomy taxonomy = Taxonomy.generate(tags, shape.depth, SEED);
+        Path directory = Paths.get(System.getProperty("benchmark.datasets", "build/jmh-datasets"));
+        Files.createDirectories(directory);
+        String name = String.format("%s-%d-%d", shape.name().toLowerCase(Locale.ROOT), tags, entities);
+        Path file = directory.resolve(name + ".db");
+        if (!Files.exists(file)) {
+            // generated under another name first, so that an interrupted generation is never reused
+            Path partial = directory.resolve(name + ".partial");
+            Files.deleteIfExists(partial);
+            generate(partial, taxonomy, entities);
+            Files.move(partial, file, StandardCopyOption.ATOMIC_MOVE);
+        }
+        else {
+            // a dataset generated under an earlier schema is migrated in place
+            try (DatabaseConnection connection = DatabaseConnection.generate("jdbc:sqlite:" + file)) {
+                new SQLDatabaseInitializer().migrate(connection);
+            }
+        }
+        Path scratch = null;
+        if (writable) {
+            scratch = Files.createTempFile(directory, name, ".db");
+            Files.copy(file, scratch, StandardCopyOption.REPLACE_EXISTING);
+            file = scratch;
+        }
+        DatabaseConnection connection = DatabaseConnection.generatePooled("jdbc:sqlite:" + file, 4);
+        return new Dataset(taxonomy, connection, cacheHierarchy ? new TagHierarchyIndex() : null, scratch);
+    }
+
+    private static void generate(Path file, Taxonomy taxonomy, int entities) throws Exception {
+        try (DatabaseConnection connection = DatabaseConnection.generate("jdbc:sqlite:" + file)) {
+            new SQLDatabaseInitializer().init(connection);
+            TagHierarchyIndex hierarchy = new TagHierarchyIndex();
+            SQLTagDAO tagDAO = new SQLTagDAO(connection, hierarchy, null);
+            for (String tag : taxonomy.tags()) {
+                tagDAO.create(tag);
+            }
+            for (Taxonomy.Edge edge : taxonomy.edges()) {
+                tagDAO.addChild(edge.parent(), edge.child());
+            }
+            SQLEntityDAO entityDAO = new SQLEntityDAO(connection, tagDAO, hierarchy);
+            ImmutableList<String> tags = taxonomy.tags();
+            Random random = new Random(SEED);
+            for (int created = 0; created < entities; created += CHUNK_SIZE) {
+                int count = Math.min(CHUNK_SIZE, entities - created);
+                ImmutableList<String> uuids = entityDAO.create(OWNER, count, List.of(tags.get(random.nextInt(tags.size()))));
+                Map<String, List<String>> additions = new HashMap<>();
+                for (String uuid : uuids) {
+                    additions.put(uuid, List.of(tags.get(random.nextInt(tags.size()))));
+                }
+                entityDAO.addTags(OWNER, additions);
+            }
+        }
+    }
+
+    public Taxonomy taxonomy() {
+        return taxonomy;
+    }
+
+    /**
+     * Get the cached tag hierarchy.
+     * @return the hierarchy, or null if the hierarchy is not cached.
+     */
+    public TagHierarchyIndex hierarchy() {
+        return hierarchy;
+    }
+
+    public SQLTagDAO tagDAO() {
+        return tagDAO;
+    }
+
+    public SQLEntityDAO entityDAO() {
+        return entityDAO;
+    }
+
+    @Override
+    public void close() throws Exception {
+        connection.close();
+        if (null != scratch) {
+            Files.deleteIfExists(scratch);
+            Files.deleteIfExists(Paths.get(scratch + "-wal"));
+            Files.deleteIfExists(Paths.get(scratch + "-shm"));
+        }
+    }
+}
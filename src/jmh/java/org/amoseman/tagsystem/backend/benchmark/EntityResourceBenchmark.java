@@ -0,0 +1,74 @@
+package org.amoseman.tagsystem.backend.benchmark;
+
+import com.codahale.metrics.MetricRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.dropwizard.jackson.Jackson;
+import jakarta.ws.rs.core.Response;
+import org.amoseman.tagsystem.backend.audit.AuditLog;
+import org.amoseman.tagsystem.backend.authentication.Roles;
+import org.amoseman.tagsystem.backend.authentication.User;
+import org.amoseman.tagsystem.backend.pojo.EntityRetrievalRequest;
+import org.amoseman.tagsystem.backend.resources.EntityResource;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retrieval through the entity resource, including serializing the response as the server would, but without
+ * the network or the authentication of the request.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EntityResourceBenchmark {
+    @Param({"SHALLOW", "DEEP"})
+    private Dataset.Shape shape;
+    @Param({"1000", "100000"})
+    private int entities;
+    @Param({"1000"})
+    private int tags;
+    private Dataset dataset;
+    private EntityResource resource;
+    private ObjectMapper mapper;
+    private User user;
+    private EntityRetrievalRequest all;
+    private EntityRetrievalRequest page;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dataset = Dataset.open(shape, tags, entities, true, false);
+        // the audit log is disabled, so that only the cost of checking its level is measured
+        MetricRegistry metrics = new MetricRegistry();
+        AuditLog audit = new AuditLog(event -> {}, java.util.logging.Level.OFF, 2, metrics);
+        resource = new EntityResource(dataset.entityDAO(), audit, metrics);
+        mapper = Jackson.newObjectMapper();
+        user = new User(Dataset.OWNER, Set.of(Roles.USER));
+        String[] query = {dataset.taxonomy().level(0).get(0), dataset.taxonomy().level(1).get(0)};
+        all = new EntityRetrievalRequest("UNION", query);
+        page = new EntityRetrievalRequest("UNION", query);
+        page.setLimit(100);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        dataset.close();
+    }
+
+    @Benchmark
+    public byte[] retrieve() throws Exception {
+        return serialize(resource.retrieve(user, all));
+    }
+
+    @Benchmark
+    public byte[] retrievePage() throws Exception {
+        return serialize(resource.retrieve(user, page));
+    }
+
+    private byte[] serialize(Response response) throws Exception {
+        return mapper.writeValueAsBytes(response.getEntity());
+    }
+}
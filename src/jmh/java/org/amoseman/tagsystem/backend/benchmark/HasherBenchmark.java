@@ -0,0 +1,39 @@
+package org.amoseman.tagsystem.backend.benchmark;
+
+import org.amoseman.tagsystem.backend.authentication.Argon2IDConfig;
+import org.amoseman.tagsystem.backend.authentication.Hasher;
+import org.openjdk.jmh.annotations.*;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashing a password under different Argon2id settings, to weigh their cost against their strength.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HasherBenchmark {
+    @Param({"1", "2", "4"})
+    private int iterations;
+    @Param({"16384", "66536"})
+    private int memory;
+    @Param({"1", "2"})
+    private int parallelism;
+    private Hasher hasher;
+    private byte[] salt;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        hasher = new Hasher(24, 16, new SecureRandom(), new Argon2IDConfig(iterations, memory, parallelism));
+        salt = hasher.salt();
+    }
+
+    @Benchmark
+    public String hash() {
+        return hasher.hash("this_is_a_terrible_password", salt);
+    }
+}
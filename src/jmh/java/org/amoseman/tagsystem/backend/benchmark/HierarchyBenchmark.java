@@ -0,0 +1,58 @@
+package org.amoseman.tagsystem.backend.benchmark;
+
+import org.amoseman.tagsystem.backend.exception.tag.TagInheritanceLoopException;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rejecting an inheritance which would cause a loop, by setting a root of the taxonomy to inherit one of its
+ * descendants at the bottom, which requires the whole chain between them to be walked or looked up.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HierarchyBenchmark {
+    @Param({"SHALLOW", "DEEP"})
+    private Dataset.Shape shape;
+    @Param({"1000", "100000"})
+    private int tags;
+    @Param({"true", "false"})
+    private boolean cacheHierarchy;
+    private Dataset dataset;
+    private String descendant;
+    private String ancestor;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dataset = Dataset.open(shape, tags, 0, cacheHierarchy, false);
+        Map<String, String> parents = new HashMap<>();
+        dataset.taxonomy().edges().forEach(edge -> parents.putIfAbsent(edge.child(), edge.parent()));
+        descendant = dataset.taxonomy().level(dataset.taxonomy().depth() - 1).get(0);
+        ancestor = descendant;
+        while (parents.containsKey(ancestor)) {
+            ancestor = parents.get(ancestor);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        dataset.close();
+    }
+
+    @Benchmark
+    public boolean rejectLoop() throws Exception {
+        try {
+            dataset.tagDAO().addChild(descendant, ancestor);
+            throw new IllegalStateException("the inheritance loop was not detected");
+        }
+        catch (TagInheritanceLoopException e) {
+            return true;
+        }
+    }
+}
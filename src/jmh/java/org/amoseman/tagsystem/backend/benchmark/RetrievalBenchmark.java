@@ -0,0 +1,48 @@
+package org.amoseman.tagsystem.backend.benchmark;
+
+import com.google.common.collect.ImmutableList;
+import org.amoseman.tagsystem.backend.dao.RetrievalOperator;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retrieval of entities by a root tag and a tag of the level below, which expand into subtrees of the taxonomy.
+ * Narrow the matrix with -p, as the largest datasets take a long time to generate the first time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RetrievalBenchmark {
+    @Param({"SHALLOW", "DEEP"})
+    private Dataset.Shape shape;
+    @Param({"1000", "100000", "10000000"})
+    private int entities;
+    @Param({"UNION", "INTERSECTION"})
+    private RetrievalOperator operator;
+    @Param({"1000"})
+    private int tags;
+    @Param({"true", "false"})
+    private boolean cacheHierarchy;
+    private Dataset dataset;
+    private ImmutableList<String> query;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dataset = Dataset.open(shape, tags, entities, cacheHierarchy, false);
+        query = ImmutableList.of(dataset.taxonomy().level(0).get(0), dataset.taxonomy().level(1).get(0));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        dataset.close();
+    }
+
+    @Benchmark
+    public ImmutableList<String> retrieve() {
+        return dataset.entityDAO().retrieve(Dataset.OWNER, operator, query);
+    }
+}
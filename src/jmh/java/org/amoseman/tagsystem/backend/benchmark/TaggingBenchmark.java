@@ -0,0 +1,61 @@
+package org.amoseman.tagsystem.backend.benchmark;
+
+import com.google.common.collect.ImmutableList;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adding a tag of the bottom of the taxonomy to an entity already tagged with a root, so that adding it also
+ * checks for, and removes, any ancestors the entity was already tagged with.
+ * Each invocation is given a fresh entity, which is not measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TaggingBenchmark {
+    @Param({"SHALLOW", "DEEP"})
+    private Dataset.Shape shape;
+    @Param({"1000", "100000"})
+    private int entities;
+    @Param({"1000"})
+    private int tags;
+    @Param({"true", "false"})
+    private boolean cacheHierarchy;
+    private Dataset dataset;
+    private Random random;
+    private ImmutableList<String> roots;
+    private ImmutableList<String> leaves;
+    private String entity;
+    private String tag;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dataset = Dataset.open(shape, tags, entities, cacheHierarchy, true);
+        random = new Random(0);
+        roots = dataset.taxonomy().level(0);
+        leaves = dataset.taxonomy().level(dataset.taxonomy().depth() - 1);
+    }
+
+    @Setup(Level.Invocation)
+    public void entity() throws Exception {
+        String root = roots.get(random.nextInt(roots.size()));
+        entity = dataset.entityDAO().create(Dataset.OWNER, 1, List.of(root)).get(0);
+        tag = leaves.get(random.nextInt(leaves.size()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        dataset.close();
+    }
+
+    @Benchmark
+    public void addTag() throws Exception {
+        dataset.entityDAO().addTag(Dataset.OWNER, entity, tag);
+    }
+}
@@ -0,0 +1,103 @@
+package org.amoseman.tagsystem.backend.benchmark;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A synthetic tag taxonomy, generated level by level from a seed.
+ * Each tag below the first level inherits a random tag of the level above, and some inherit a second one,
+ * so that the hierarchy contains diamonds as real taxonomies do.
+ */
+public final class Taxonomy {
+    private static final double SECOND_PARENT_CHANCE = 0.1;
+    private final ImmutableList<ImmutableList<String>> levels;
+    private final ImmutableList<Edge> edges;
+
+    private Taxonomy(ImmutableList<ImmutableList<String>> levels, ImmutableList<Edge> edges) {
+        this.levels = levels;
+        this.edges = edges;
+    }
+
+    /**
+     * Generate a taxonomy.
+     * The tags are spread evenly across the levels, so a deep taxonomy has narrow levels and long chains.
+     * @param tags the number of tags.
+     * @param depth the number of levels.
+     * @param seed the seed of the generation.
+     * @return the taxonomy.
+     */
+    public static Taxonomy generate(int tags, int depth, long seed) {
+        Random random = new Random(seed);
+        int perLevel = Math.max(1, tags / depth);
+        List<ImmutableList<String>> levels = new ArrayList<>();
+        List<Edge> edges = new ArrayList<>();
+        int created = 0;
+        for (int level = 0; level < depth && created < tags; level++) {
+            int width = level == depth - 1 ? tags - created : Math.min(perLevel, tags - created);
+            ImmutableList.Builder<String> names = ImmutableList.builder();
+            for (int i = 0; i < width; i++) {
+                String name = String.format("t%d-%d", level, i);
+                names.add(name);
+                if (0 < level) {
+                    ImmutableList<String> above = levels.get(level - 1);
+                    String parent = above.get(random.nextInt(above.size()));
+                    edges.add(new Edge(parent, name));
+                    if (1 < above.size() && random.nextDouble() < SECOND_PARENT_CHANCE) {
+                        String second = above.get(random.nextInt(above.size()));
+                        if (!second.equals(parent)) {
+                            edges.add(new Edge(second, name));
+                        }
+                    }
+                }
+            }
+            levels.add(names.build());
+            created += width;
+        }
+        return new Taxonomy(ImmutableList.copyOf(levels), ImmutableList.copyOf(edges));
+    }
+
+    /**
+     * Get the tags of a level, from the roots at level zero down.
+     * @param level the level.
+     * @return the tags.
+     */
+    public ImmutableList<String> level(int level) {
+        return levels.get(level);
+    }
+
+    /**
+     * Get the number of levels.
+     * @return the depth.
+     */
+    public int depth() {
+        return levels.size();
+    }
+
+    /**
+     * Get every tag, from the roots down.
+     * @return the tags.
+     */
+    public ImmutableList<String> tags() {
+        ImmutableList.Builder<String> builder = ImmutableList.builder();
+        levels.forEach(builder::addAll);
+        return builder.build();
+    }
+
+    /**
+     * Get every inheritance, in an order in which each parent is created before its children.
+     * @return the inheritances.
+     */
+    public ImmutableList<Edge> edges() {
+        return edges;
+    }
+
+    /**
+     * An inheritance of the taxonomy.
+     * @param parent the parent tag.
+     * @param child the child tag.
+     */
+    public record Edge(String parent, String child) {}
+}
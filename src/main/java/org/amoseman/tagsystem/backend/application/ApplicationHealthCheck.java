@@ -2,6 +2,7 @@ package org.amoseman.tagsystem.backend.application;
 
 import com.codahale.metrics.health.HealthCheck;
 import org.amoseman.tagsystem.backend.dao.sql.DatabaseConnection;
+import org.jooq.exception.DataAccessException;
 
 public class ApplicationHealthCheck extends HealthCheck {
     private final DatabaseConnection connection;
@@ -12,9 +13,11 @@ public class ApplicationHealthCheck extends HealthCheck {
 
     @Override
     protected Result check() throws Exception {
-        // todo: do a more proper health check
-        if (connection.getConnection().isClosed()) {
-            return Result.unhealthy("database connection is closed");
+        try {
+            connection.reader().selectOne().fetch();
+        }
+        catch (DataAccessException e) {
+            return Result.unhealthy("database is unreachable: " + e.getMessage());
         }
         return Result.healthy();
     }
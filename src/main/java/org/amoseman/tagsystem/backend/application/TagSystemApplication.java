@@ -1,30 +1,45 @@
 package org.amoseman.tagsystem.backend.application;
 
-import com.codahale.metrics.ConsoleReporter;
 import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableList;
 import io.dropwizard.auth.AuthDynamicFeature;
+import io.dropwizard.auth.AuthFilter;
 import io.dropwizard.auth.AuthValueFactoryProvider;
 import io.dropwizard.auth.Authenticator;
 import io.dropwizard.auth.Authorizer;
 import io.dropwizard.auth.basic.BasicCredentialAuthFilter;
 import io.dropwizard.auth.basic.BasicCredentials;
+import io.dropwizard.auth.chained.ChainedAuthFilter;
+import io.dropwizard.auth.oauth.OAuthCredentialAuthFilter;
 import io.dropwizard.core.Application;
 import io.dropwizard.core.setup.Environment;
+import io.dropwizard.lifecycle.Managed;
+import org.amoseman.tagsystem.backend.audit.AuditLog;
+import org.amoseman.tagsystem.backend.audit.LoggerAuditSink;
 import org.amoseman.tagsystem.backend.authentication.*;
 import org.amoseman.tagsystem.backend.dao.DatabaseInitializer;
 import org.amoseman.tagsystem.backend.dao.EntityDAO;
 import org.amoseman.tagsystem.backend.dao.TagDAO;
+import org.amoseman.tagsystem.backend.dao.TagStatistics;
 import org.amoseman.tagsystem.backend.dao.UserDAO;
 import org.amoseman.tagsystem.backend.dao.sql.*;
+import org.amoseman.tagsystem.backend.index.BitmapEntityIndex;
+import org.amoseman.tagsystem.backend.index.CachedEntityDAO;
+import org.amoseman.tagsystem.backend.index.RetrievalCache;
+import org.amoseman.tagsystem.backend.index.TagHierarchyIndex;
+import org.amoseman.tagsystem.backend.metrics.QueryMetrics;
 import org.amoseman.tagsystem.backend.resources.EntityResource;
+import org.amoseman.tagsystem.backend.resources.LoginResource;
 import org.amoseman.tagsystem.backend.resources.TagResource;
 import org.amoseman.tagsystem.backend.resources.UserResource;
 import org.amoseman.tagsystem.backend.service.UserService;
 import org.glassfish.jersey.server.filter.RolesAllowedDynamicFeature;
 
 import java.security.SecureRandom;
-import java.util.concurrent.TimeUnit;
-import java.util.logging.ConsoleHandler;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -32,24 +47,52 @@ public class TagSystemApplication extends Application<TagSystemConfiguration> {
     public static void main(String... args) throws Exception {
         new TagSystemApplication().run(args);
     }
+
+    private static byte[] random(int length) {
+        byte[] bytes = new byte[length];
+        new SecureRandom().nextBytes(bytes);
+        return bytes;
+    }
+
     @Override
     public void run(TagSystemConfiguration configuration, Environment environment) throws Exception {
         Logger logger = Logger.getGlobal();
-        logger.addHandler(new ConsoleHandler());
-        logger.setLevel(Level.ALL);
-
-        MetricRegistry metrics = new MetricRegistry();
-        ConsoleReporter reporter = ConsoleReporter.forRegistry(metrics)
-                .convertRatesTo(TimeUnit.SECONDS)
-                .convertDurationsTo(TimeUnit.MILLISECONDS)
-                .build();
-        reporter.start(30, TimeUnit.SECONDS);
-
-        DatabaseConnection connection = DatabaseConnection.generate(configuration.getDatabaseURL());
-        DatabaseInitializer initializer = new SQLDatabaseInitializer();
+
+        // the registry served on the admin port, alongside the timers of every resource method
+        MetricRegistry metrics = environment.metrics();
+        QueryMetrics queryMetrics = new QueryMetrics(metrics);
+        AuditLog audit = new AuditLog(
+                new LoggerAuditSink(Logger.getLogger("audit")),
+                Level.parse(configuration.getAuditLevel()),
+                configuration.getAuditCapacity(),
+                metrics
+        );
+        environment.lifecycle().manage(audit);
+
+        DatabaseConnection connection = SQLBackend.connect(
+                configuration.getDatabaseURL(),
+                SQLBackend.dialect(configuration.getDatabaseDialect()),
+                configuration.getDatabaseUsername(),
+                configuration.getDatabasePassword(),
+                configuration.isDatabasePooled(),
+                configuration.getDatabasePoolSize()
+        );
+        SQLBackend backend = new SQLBackend(connection);
+        environment.lifecycle().manage(new Managed() {
+            @Override
+            public void stop() throws Exception {
+                connection.close();
+            }
+        });
+        connection.listen(queryMetrics);
+        DatabaseInitializer initializer = backend.initializer();
         initializer.init(connection);
 
         logger.info("Connected to database");
+        ImmutableList<String> missingIndexes = initializer.missingIndexes(connection);
+        if (!missingIndexes.isEmpty()) {
+            logger.warning(String.format("Database is missing the indexes %s", String.join(", ", missingIndexes)));
+        }
 
         Hasher hasher = new Hasher(
                 configuration.getPasswordHashLength(),
@@ -61,30 +104,81 @@ public class TagSystemApplication extends Application<TagSystemConfiguration> {
                         configuration.getHashParallelism())
         );
 
-        TagDAO tagDAO = new SQLTagDAO(connection);
-        EntityDAO entityDAO = new SQLEntityDAO(connection, tagDAO);
-        UserDAO userDAO = new SQLUserDAO(connection, hasher);
+        HashingExecutor hashingExecutor = new HashingExecutor(
+                hasher,
+                configuration.getHashingConcurrency(),
+                configuration.getHashingQueueSize(),
+                metrics
+        );
+        environment.lifecycle().manage(hashingExecutor);
+
+        AuthenticationCache authenticationCache = new AuthenticationCache(
+                configuration.getAuthenticationCacheSize(),
+                Duration.ofSeconds(configuration.getAuthenticationCacheSeconds()),
+                new SecureRandom(),
+                metrics
+        );
+
+        TagHierarchyIndex hierarchy = configuration.isCacheTagHierarchy() ? new TagHierarchyIndex() : null;
+        RetrievalCache retrievalCache = 0 < configuration.getRetrievalCacheSize()
+                ? new RetrievalCache(configuration.getRetrievalCacheSize(), hierarchy, metrics)
+                : null;
+        SQLTagDAO sqlTagDAO = backend.tagDAO(hierarchy, retrievalCache);
+        TagDAO tagDAO = sqlTagDAO;
+        EntityDAO entityDAO = backend.entityDAO(sqlTagDAO, hierarchy);
+        if (configuration.isBitmapEntityIndex()) {
+            BitmapEntityIndex bitmapIndex = new BitmapEntityIndex(entityDAO, hierarchy);
+            sqlTagDAO.onDelete(bitmapIndex::clearTag);
+            entityDAO = bitmapIndex;
+        }
+        if (null != retrievalCache) {
+            entityDAO = new CachedEntityDAO(entityDAO, retrievalCache);
+        }
+        UserDAO userDAO = backend.userDAO(hashingExecutor, entityDAO, authenticationCache);
+        TagStatistics tagStatistics = backend.tagStatistics();
+
+        tagDAO = queryMetrics.instrument(TagDAO.class, tagDAO);
+        entityDAO = queryMetrics.instrument(EntityDAO.class, entityDAO);
+        userDAO = queryMetrics.instrument(UserDAO.class, userDAO);
+        tagStatistics = queryMetrics.instrument(TagStatistics.class, tagStatistics);
 
         UserService userService = new UserService(userDAO);
 
-        TagResource tagResource = new TagResource(tagDAO, metrics);
-        EntityResource entityResource = new EntityResource(entityDAO, metrics);
-        UserResource userResource = new UserResource(userService, userDAO, metrics);
+        TagResource tagResource = new TagResource(tagDAO, tagStatistics, environment.getObjectMapper(), audit, metrics);
+        EntityResource entityResource = new EntityResource(entityDAO, audit, metrics);
+        UserResource userResource = new UserResource(userService, userDAO, audit, metrics);
 
         environment.jersey().register(tagResource);
         environment.jersey().register(entityResource);
         environment.jersey().register(userResource);
 
-        Authenticator<BasicCredentials, User> authenticator = new BasicAuthenticator(userDAO, hasher);
+        Authenticator<BasicCredentials, User> authenticator = new BasicAuthenticator(userDAO, hashingExecutor, authenticationCache);
         Authorizer<User> authorizer = new BasicAuthorizer();
-        environment.jersey().register(new AuthDynamicFeature(
+        byte[] tokenSecret = configuration.getTokenSecret().isEmpty()
+                ? random(32)
+                : Base64.getDecoder().decode(configuration.getTokenSecret());
+        TokenAuthenticator tokenAuthenticator = new TokenAuthenticator(
+                userDAO,
+                tokenSecret,
+                Duration.ofSeconds(configuration.getTokenSeconds()),
+                Clock.systemUTC()
+        );
+        environment.jersey().register(new LoginResource(tokenAuthenticator, audit, metrics));
+        // basic authentication comes first, so that its challenge is the one sent back to unauthenticated requests
+        @SuppressWarnings("rawtypes")
+        List<AuthFilter> filters = List.of(
                 new BasicCredentialAuthFilter.Builder<User>()
                         .setAuthenticator(authenticator)
                         .setAuthorizer(authorizer)
                         .setRealm("BASIC-AUTH-REALM")
+                        .buildAuthFilter(),
+                new OAuthCredentialAuthFilter.Builder<User>()
+                        .setAuthenticator(tokenAuthenticator)
+                        .setAuthorizer(authorizer)
+                        .setPrefix("Bearer")
                         .buildAuthFilter()
-                )
         );
+        environment.jersey().register(new AuthDynamicFeature(new ChainedAuthFilter(filters)));
         environment.jersey().register(RolesAllowedDynamicFeature.class);
         environment.jersey().register(new AuthValueFactoryProvider.Binder<>(User.class));
 
@@ -8,20 +8,40 @@ public class TagSystemConfiguration extends Configuration {
     @NotEmpty
     private String databaseURL = "tagsystem.db";
     @NotEmpty
+    private String databaseDialect = "SQLITE";
+    @NotEmpty
     private String databaseUsername = "username";
     @NotEmpty
     private String databasePassword = "password";
+    private boolean databasePooled = true;
+    private int databasePoolSize = 4;
     private int passwordHashLength = 24;
     private int passwordSaltLength = 16;
     private int hashIterations = 2;
     private int hashMemory = 66536;
     private int hashParallelism = 1;
+    private int hashingConcurrency = 2;
+    private int hashingQueueSize = 32;
+    private long authenticationCacheSize = 10_000;
+    private long authenticationCacheSeconds = 300;
+    private String tokenSecret = "";
+    private long tokenSeconds = 3600;
+    private boolean cacheTagHierarchy = true;
+    private boolean bitmapEntityIndex = false;
+    private long retrievalCacheSize = 0;
+    private String auditLevel = "INFO";
+    private int auditCapacity = 8192;
 
     @JsonProperty
     public String getDatabaseURL() {
         return databaseURL;
     }
 
+    @JsonProperty
+    public String getDatabaseDialect() {
+        return databaseDialect;
+    }
+
     @JsonProperty
     public String getDatabaseUsername() {
         return databaseUsername;
@@ -32,6 +52,14 @@ public class TagSystemConfiguration extends Configuration {
         return databasePassword;
     }
 
+    public boolean isDatabasePooled() {
+        return databasePooled;
+    }
+
+    public int getDatabasePoolSize() {
+        return databasePoolSize;
+    }
+
     public int getPasswordHashLength() {
         return passwordHashLength;
     }
@@ -51,4 +79,48 @@ public class TagSystemConfiguration extends Configuration {
     public int getHashParallelism() {
         return hashParallelism;
     }
+
+    public int getHashingConcurrency() {
+        return hashingConcurrency;
+    }
+
+    public int getHashingQueueSize() {
+        return hashingQueueSize;
+    }
+
+    public long getAuthenticationCacheSize() {
+        return authenticationCacheSize;
+    }
+
+    public long getAuthenticationCacheSeconds() {
+        return authenticationCacheSeconds;
+    }
+
+    public String getTokenSecret() {
+        return tokenSecret;
+    }
+
+    public long getTokenSeconds() {
+        return tokenSeconds;
+    }
+
+    public boolean isCacheTagHierarchy() {
+        return cacheTagHierarchy;
+    }
+
+    public boolean isBitmapEntityIndex() {
+        return bitmapEntityIndex;
+    }
+
+    public long getRetrievalCacheSize() {
+        return retrievalCacheSize;
+    }
+
+    public String getAuditLevel() {
+        return auditLevel;
+    }
+
+    public int getAuditCapacity() {
+        return auditCapacity;
+    }
 }
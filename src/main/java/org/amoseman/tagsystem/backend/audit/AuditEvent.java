@@ -0,0 +1,20 @@
+package org.amoseman.tagsystem.backend.audit;
+
+import java.util.logging.Level;
+
+/**
+ * An event of the audit log, kept unformatted until it is written.
+ * @param time when the event happened, in milliseconds since the epoch.
+ * @param level the level of the event.
+ * @param format the format of the message of the event, as for String.format.
+ * @param arguments the arguments of the format.
+ */
+public record AuditEvent(long time, Level level, String format, Object[] arguments) {
+    /**
+     * Format the message of the event.
+     * @return the message.
+     */
+    public String message() {
+        return String.format(format, arguments);
+    }
+}
@@ -0,0 +1,225 @@
+package org.amoseman.tagsystem.backend.audit;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import io.dropwizard.lifecycle.Managed;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+/**
+ * An asynchronous audit log.
+ * Events are published by request threads into a bounded, lock-free ring buffer, and written to a sink by a single
+ * background thread, which sleeps while the buffer is empty until an event is published. Events below the level of
+ * the log are discarded before an event or an array of arguments is allocated for them, though numeric arguments are
+ * boxed by the caller unless an overload takes them as they are. Events are left unformatted until written. When the
+ * buffer is full, events are dropped and counted, rather than blocking the request thread.
+ */
+public class AuditLog implements Managed {
+    private final AuditSink sink;
+    private final Level level;
+    private final AtomicReferenceArray<AuditEvent> slots;
+    private final int mask;
+    private final AtomicLong head;
+    private final AtomicLong tail;
+    private final Counter dropped;
+    private final Thread drainer;
+    private volatile boolean running;
+    private volatile boolean idle;
+
+    /**
+     * Instantiate an audit log.
+     * @param sink the sink to write events to.
+     * @param level the lowest level of event to write.
+     * @param capacity the number of events which may be waiting to be written, rounded up to a power of two.
+     * @param metrics the registry to report dropped events and the backlog to.
+     */
+    public AuditLog(AuditSink sink, Level level, int capacity, MetricRegistry metrics) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.sink = sink;
+        this.level = level;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.head = new AtomicLong();
+        this.tail = new AtomicLong();
+        this.dropped = metrics.counter("audit-dropped");
+        metrics.register("audit-backlog", (Gauge<Long>) () -> tail.get() - head.get());
+        this.drainer = new Thread(this::drain, "audit");
+        this.drainer.setDaemon(true);
+        this.running = false;
+        this.idle = false;
+    }
+
+    /**
+     * Check whether events of a level are written.
+     * @param level the level.
+     * @return the result of the check.
+     */
+    public boolean isEnabled(Level level) {
+        return level.intValue() >= this.level.intValue();
+    }
+
+    /**
+     * Log an event at the info level.
+     * The overloads of a fixed number of arguments avoid allocating an array when the level is disabled.
+     * @param format the format of the message, as for String.format.
+     * @param first the argument of the format.
+     */
+    public void info(String format, Object first) {
+        if (isEnabled(Level.INFO)) {
+            publish(Level.INFO, format, new Object[]{first});
+        }
+    }
+
+    /**
+     * Log an event at the info level.
+     * @param format the format of the message, as for String.format.
+     * @param first the first argument of the format.
+     * @param second the second argument of the format.
+     */
+    public void info(String format, Object first, Object second) {
+        if (isEnabled(Level.INFO)) {
+            publish(Level.INFO, format, new Object[]{first, second});
+        }
+    }
+
+    /**
+     * Log an event at the info level.
+     * The number is taken as it is, so that it is only boxed when the level is enabled.
+     * @param format the format of the message, as for String.format.
+     * @param first the first argument of the format.
+     * @param second the second argument of the format.
+     */
+    public void info(String format, Object first, int second) {
+        if (isEnabled(Level.INFO)) {
+            publish(Level.INFO, format, new Object[]{first, second});
+        }
+    }
+
+    /**
+     * Log an event at the info level.
+     * The number is taken as it is, so that it is only boxed when the level is enabled.
+     * @param format the format of the message, as for String.format.
+     * @param first the first argument of the format.
+     * @param second the second argument of the format.
+     */
+    public void info(String format, Object first, long second) {
+        if (isEnabled(Level.INFO)) {
+            publish(Level.INFO, format, new Object[]{first, second});
+        }
+    }
+
+    /**
+     * Log an event at the info level.
+     * @param format the format of the message, as for String.format.
+     * @param first the first argument of the format.
+     * @param second the second argument of the format.
+     * @param third the third argument of the format.
+     */
+    public void info(String format, Object first, Object second, Object third) {
+        if (isEnabled(Level.INFO)) {
+            publish(Level.INFO, format, new Object[]{first, second, third});
+        }
+    }
+
+    /**
+     * Log an event at the info level.
+     * @param format the format of the message, as for String.format.
+     * @param first the first argument of the format.
+     * @param second the second argument of the format.
+     * @param third the third argument of the format.
+     * @param fourth the fourth argument of the format.
+     */
+    public void info(String format, Object first, Object second, Object third, Object fourth) {
+        if (isEnabled(Level.INFO)) {
+            publish(Level.INFO, format, new Object[]{first, second, third, fourth});
+        }
+    }
+
+    private void publish(Level level, String format, Object[] arguments) {
+        AuditEvent event = new AuditEvent(System.currentTimeMillis(), level, format, arguments);
+        while (true) {
+            long claimed = tail.get();
+            if (claimed - head.get() > mask) {
+                dropped.inc();
+                return;
+            }
+            if (tail.compareAndSet(claimed, claimed + 1)) {
+                slots.set((int) claimed & mask, event);
+                if (idle) {
+                    LockSupport.unpark(drainer);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Write every event published so far.
+     * @return whether any events were written.
+     */
+    private boolean drainAvailable() {
+        boolean written = false;
+        long next = head.get();
+        while (next < tail.get()) {
+            int index = (int) next & mask;
+            AuditEvent event = slots.get(index);
+            if (null == event) {
+                // the slot is claimed, but its event is not yet published
+                break;
+            }
+            // the slot is cleared before it is released to the publishers
+            slots.set(index, null);
+            head.set(++next);
+            try {
+                sink.write(event);
+            }
+            catch (RuntimeException e) {
+                dropped.inc();
+            }
+            written = true;
+        }
+        if (written) {
+            sink.flush();
+        }
+        return written;
+    }
+
+    private void drain() {
+        while (running) {
+            if (drainAvailable()) {
+                continue;
+            }
+            // idle is announced before the buffer is checked again, so that an event published in between is either
+            // seen by the check, or its publisher sees the drainer idle and unparks it
+            idle = true;
+            if (!drainAvailable() && running) {
+                LockSupport.park(this);
+            }
+            idle = false;
+        }
+        // write what was published before stopping, without chasing events published since
+        long end = tail.get();
+        while (head.get() < end) {
+            if (!drainAvailable()) {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    @Override
+    public void start() {
+        running = true;
+        drainer.start();
+    }
+
+    @Override
+    public void stop() throws InterruptedException {
+        running = false;
+        LockSupport.unpark(drainer);
+        drainer.join();
+    }
+}
@@ -0,0 +1,21 @@
+package org.amoseman.tagsystem.backend.audit;
+
+/**
+ * The interface of a destination of audit events.
+ * Events are written one at a time, from the single thread which drains the audit log.
+ */
+public interface AuditSink {
+    /**
+     * Write an event.
+     * @param event the event.
+     */
+    void write(AuditEvent event);
+
+    /**
+     * Flush any events written but not yet stored.
+     * Called whenever the audit log has been drained.
+     */
+    default void flush() {
+
+    }
+}
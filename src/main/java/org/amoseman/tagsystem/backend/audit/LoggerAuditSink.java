@@ -0,0 +1,29 @@
+package org.amoseman.tagsystem.backend.audit;
+
+import java.time.Instant;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Writes audit events to a logger, and so to wherever the logging of the application is configured to go.
+ */
+public class LoggerAuditSink implements AuditSink {
+    private final Logger logger;
+
+    /**
+     * Instantiate a logger audit sink.
+     * @param logger the logger.
+     */
+    public LoggerAuditSink(Logger logger) {
+        this.logger = logger;
+    }
+
+    @Override
+    public void write(AuditEvent event) {
+        LogRecord record = new LogRecord(event.level(), event.message());
+        record.setLoggerName(logger.getName());
+        // the time the event happened, rather than when it was drained
+        record.setInstant(Instant.ofEpochMilli(event.time()));
+        logger.log(record);
+    }
+}
@@ -0,0 +1,126 @@
+package org.amoseman.tagsystem.backend.authentication;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of recent successful authentications.
+ * Rather than the password, each entry holds a keyed digest of the credentials, which is cheap to compute compared to
+ * the password hash. The key is generated on startup and never leaves memory.
+ */
+public class AuthenticationCache {
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final int KEY_LENGTH = 32;
+    private final Cache<String, Entry> cache;
+    private final SecretKeySpec key;
+    private final ThreadLocal<Mac> macs;
+    private final AtomicLong invalidations;
+    private final Counter hits;
+    private final Counter misses;
+
+    /**
+     * Instantiate an authentication cache.
+     * @param maximumSize the maximum number of users to cache.
+     * @param ttl how long an authentication is cached for.
+     * @param random the random to generate the key with.
+     * @param metrics the registry to report hits and misses to.
+     */
+    public AuthenticationCache(final long maximumSize, final Duration ttl, final SecureRandom random, final MetricRegistry metrics) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttl)
+                .build();
+        byte[] secret = new byte[KEY_LENGTH];
+        random.nextBytes(secret);
+        this.key = new SecretKeySpec(secret, ALGORITHM);
+        this.macs = ThreadLocal.withInitial(this::mac);
+        this.invalidations = new AtomicLong();
+        this.hits = metrics.counter("authentication-cache-hits");
+        this.misses = metrics.counter("authentication-cache-misses");
+        metrics.register("authentication-cache-size", (Gauge<Long>) cache::size);
+    }
+
+    private Mac mac() {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac;
+        }
+        catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private byte[] digest(final String username, final String password) {
+        Mac mac = macs.get();
+        mac.update(username.getBytes(StandardCharsets.UTF_8));
+        // separate the username from the password, so that the split between them is unambiguous
+        mac.update((byte) 0);
+        return mac.doFinal(password.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Get the current stamp of the cache.
+     * To be taken before looking up a user, and passed to put, so that an authentication which raced an invalidation
+     * is not cached.
+     * @return the stamp.
+     */
+    public long stamp() {
+        return invalidations.get();
+    }
+
+    /**
+     * Get the user of a cached authentication.
+     * @param username the username provided.
+     * @param password the password provided.
+     * @return the user, if the credentials match a cached authentication.
+     */
+    public Optional<User> get(final String username, final String password) {
+        Entry entry = cache.getIfPresent(username);
+        if (null == entry || !MessageDigest.isEqual(entry.digest(), digest(username, password))) {
+            misses.inc();
+            return Optional.empty();
+        }
+        hits.inc();
+        return Optional.of(entry.user());
+    }
+
+    /**
+     * Cache a successful authentication.
+     * @param user the authenticated user.
+     * @param password the password the user authenticated with.
+     * @param stamp the stamp of the cache from before the user was looked up.
+     */
+    public void put(final User user, final String password, final long stamp) {
+        Entry entry = new Entry(digest(user.getName(), password), user);
+        cache.put(user.getName(), entry);
+        if (stamp != invalidations.get()) {
+            cache.invalidate(user.getName());
+        }
+    }
+
+    /**
+     * Invalidate the cached authentication of a user.
+     * To be called whenever the user is removed, or their roles change.
+     * @param username the username of the user.
+     */
+    public void invalidate(final String username) {
+        invalidations.incrementAndGet();
+        cache.invalidate(username);
+    }
+
+    private record Entry(byte[] digest, User user) {}
+}
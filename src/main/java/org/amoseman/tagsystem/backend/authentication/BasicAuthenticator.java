@@ -3,38 +3,53 @@ package org.amoseman.tagsystem.backend.authentication;
 import io.dropwizard.auth.AuthenticationException;
 import io.dropwizard.auth.Authenticator;
 import io.dropwizard.auth.basic.BasicCredentials;
+import jakarta.ws.rs.ServiceUnavailableException;
 import org.amoseman.tagsystem.backend.dao.UserDAO;
 import org.amoseman.tagsystem.backend.exception.user.UserDoesNotExistException;
+import org.amoseman.tagsystem.backend.pojo.UserCredentials;
 
 import java.util.Optional;
+import java.util.concurrent.RejectedExecutionException;
 
 public class BasicAuthenticator implements Authenticator<BasicCredentials, User> {
+    private static final long RETRY_AFTER_SECONDS = 1;
     private final UserDAO userDAO;
-    private final Hasher hasher;
+    private final HashingExecutor hasher;
+    private final AuthenticationCache cache;
 
-    public BasicAuthenticator(UserDAO userDAO, Hasher hasher) {
+    public BasicAuthenticator(UserDAO userDAO, HashingExecutor hasher, AuthenticationCache cache) {
         this.userDAO = userDAO;
         this.hasher = hasher;
+        this.cache = cache;
     }
 
     @Override
     public Optional<User> authenticate(BasicCredentials credentials) throws AuthenticationException {
-        User user;
-        String expectedPassword;
-        byte[] salt;
+        Optional<User> cached = cache.get(credentials.getUsername(), credentials.getPassword());
+        if (cached.isPresent()) {
+            return cached;
+        }
+        long stamp = cache.stamp();
+        UserCredentials stored;
         try {
-            String username = credentials.getUsername();
-            user = userDAO.getUser(username);
-            expectedPassword = userDAO.getPassword(username);
-            salt = userDAO.getSalt(username);
+            stored = userDAO.getCredentials(credentials.getUsername());
         }
         catch (UserDoesNotExistException e) {
             return Optional.empty();
         }
         String attemptedPassword = credentials.getPassword();
-        if (!hasher.verify(attemptedPassword, salt, expectedPassword)) {
+        boolean verified;
+        try {
+            verified = hasher.verify(attemptedPassword, stored.salt(), stored.hash());
+        }
+        catch (RejectedExecutionException e) {
+            throw new ServiceUnavailableException(RETRY_AFTER_SECONDS);
+        }
+        if (!verified) {
             return Optional.empty();
         }
+        User user = stored.user();
+        cache.put(user, attemptedPassword, stamp);
         return Optional.of(user);
     }
 }
@@ -46,6 +46,8 @@ public class Hasher {
      * @return the base 64 encoding of the hash of the password.
      */
     public String hash(final String password, final byte[] salt) {
+        // a generator per hash, as a generator holds on to its memory blocks between hashes, and every
+        // initialization allocates them afresh regardless
         Argon2BytesGenerator generator = new Argon2BytesGenerator();
         generator.init(config.getBuilder(salt).build());
         byte[] hash = new byte[hashLength];
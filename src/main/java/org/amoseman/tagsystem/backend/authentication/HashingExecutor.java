@@ -0,0 +1,116 @@
+package org.amoseman.tagsystem.backend.authentication;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import io.dropwizard.lifecycle.Managed;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs password hashing on a dedicated, bounded pool of threads.
+ * As hashing is deliberately expensive in both time and memory, at most a fixed number of hashes run at once, and at
+ * most a fixed number wait. Any further hashes are rejected immediately, rather than tying up request threads.
+ */
+public class HashingExecutor implements Managed {
+    private final Hasher hasher;
+    private final ThreadPoolExecutor executor;
+    private final Timer latency;
+    private final Meter rejections;
+
+    /**
+     * Instantiate a hashing executor.
+     * @param hasher the hasher to run.
+     * @param concurrency the maximum number of hashes to run at once.
+     * @param queueSize the maximum number of hashes to wait to run.
+     * @param metrics the registry to report queue depth, latency, and rejections to.
+     */
+    public HashingExecutor(final Hasher hasher, final int concurrency, final int queueSize, final MetricRegistry metrics) {
+        this.hasher = hasher;
+        AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(
+                concurrency,
+                concurrency,
+                0,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                runnable -> {
+                    Thread thread = new Thread(runnable, String.format("hasher-%d", count.incrementAndGet()));
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.AbortPolicy()
+        );
+        this.latency = metrics.timer("hashing-latency");
+        this.rejections = metrics.meter("hashing-rejections");
+        metrics.register("hashing-queue-depth", (Gauge<Integer>) () -> executor.getQueue().size());
+    }
+
+    /**
+     * Generate salt.
+     * As generating salt is cheap, it is not run on the pool.
+     * @return the salt.
+     */
+    public byte[] salt() {
+        return hasher.salt();
+    }
+
+    /**
+     * Verify the provided password against the provided hash.
+     * @param password the password to verify.
+     * @param salt the salt to use.
+     * @param hash the hash to verify against.
+     * @return the result of the check.
+     * @throws RejectedExecutionException if too many hashes are already running or waiting.
+     */
+    public boolean verify(final String password, final byte[] salt, final String hash) {
+        return run(() -> hasher.verify(password, salt, hash));
+    }
+
+    /**
+     * Generate the hash of the provided password, encoded in base 64.
+     * @param password the password to hash.
+     * @param salt the salt to use in hashing.
+     * @return the base 64 encoding of the hash of the password.
+     * @throws RejectedExecutionException if too many hashes are already running or waiting.
+     */
+    public String hash(final String password, final byte[] salt) {
+        return run(() -> hasher.hash(password, salt));
+    }
+
+    private <T> T run(final Callable<T> task) {
+        Future<T> future;
+        try {
+            future = executor.submit(() -> {
+                try (Timer.Context ignored = latency.time()) {
+                    return task.call();
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            rejections.mark();
+            throw e;
+        }
+        try {
+            return future.get();
+        }
+        catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException(e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    @Override
+    public void stop() throws Exception {
+        executor.shutdown();
+    }
+}
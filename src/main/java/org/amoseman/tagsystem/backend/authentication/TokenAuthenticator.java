@@ -0,0 +1,114 @@
+package org.amoseman.tagsystem.backend.authentication;
+
+import io.dropwizard.auth.AuthenticationException;
+import io.dropwizard.auth.Authenticator;
+import org.amoseman.tagsystem.backend.dao.UserDAO;
+import org.amoseman.tagsystem.backend.exception.user.UserDoesNotExistException;
+import org.amoseman.tagsystem.backend.pojo.LoginResponse;
+import org.amoseman.tagsystem.backend.pojo.UserCredentials;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.*;
+
+/**
+ * Issues and authenticates signed, expiring bearer tokens.
+ * A token is the base 64 encoding of its expiry, the roles of the user, and the username, followed by an HMAC of
+ * them. Checking a token takes a single MAC computation, rather than a password hash.
+ */
+public class TokenAuthenticator implements Authenticator<String, User> {
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final String SEPARATOR = "\n";
+    private final UserDAO userDAO;
+    private final SecretKeySpec key;
+    private final ThreadLocal<Mac> macs;
+    private final Duration lifetime;
+    private final Clock clock;
+
+    /**
+     * Instantiate a token authenticator.
+     * @param userDAO the user DAO, used to check that the user still exists with the same roles.
+     * @param secret the key to sign tokens with.
+     * @param lifetime how long an issued token is valid for.
+     * @param clock the clock to check expiry against.
+     */
+    public TokenAuthenticator(final UserDAO userDAO, final byte[] secret, final Duration lifetime, final Clock clock) {
+        this.userDAO = userDAO;
+        this.key = new SecretKeySpec(secret, ALGORITHM);
+        this.macs = ThreadLocal.withInitial(this::mac);
+        this.lifetime = lifetime;
+        this.clock = clock;
+    }
+
+    private Mac mac() {
+        try {
+            Mac mac = Mac.getInstance(ALGORITHM);
+            mac.init(key);
+            return mac;
+        }
+        catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private byte[] sign(final byte[] payload) {
+        return macs.get().doFinal(payload);
+    }
+
+    /**
+     * Issue a token for an authenticated user.
+     * @param user the user.
+     * @return the token, along with when it expires.
+     */
+    public LoginResponse issue(final User user) {
+        long expiry = clock.instant().plus(lifetime).getEpochSecond();
+        String roles = String.join(",", new TreeSet<>(user.getRoles()));
+        byte[] payload = String.join(SEPARATOR, Long.toString(expiry), roles, user.getName()).getBytes(StandardCharsets.UTF_8);
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        String token = encoder.encodeToString(payload) + "." + encoder.encodeToString(sign(payload));
+        return new LoginResponse(token, expiry);
+    }
+
+    @Override
+    public Optional<User> authenticate(final String token) throws AuthenticationException {
+        int dot = token.indexOf('.');
+        if (dot < 0) {
+            return Optional.empty();
+        }
+        byte[] payload;
+        byte[] signature;
+        try {
+            payload = Base64.getUrlDecoder().decode(token.substring(0, dot));
+            signature = Base64.getUrlDecoder().decode(token.substring(dot + 1));
+        }
+        catch (IllegalArgumentException e) {
+            return Optional.empty();
+        }
+        if (!MessageDigest.isEqual(sign(payload), signature)) {
+            return Optional.empty();
+        }
+        // the username is last, as it is the only field which may contain the separator
+        String[] fields = new String(payload, StandardCharsets.UTF_8).split(SEPARATOR, 3);
+        if (3 != fields.length || Long.parseLong(fields[0]) <= clock.instant().getEpochSecond()) {
+            return Optional.empty();
+        }
+        Set<String> roles = fields[1].isEmpty() ? Set.of() : Set.of(fields[1].split(","));
+        UserCredentials credentials;
+        try {
+            credentials = userDAO.getCredentials(fields[2]);
+        }
+        catch (UserDoesNotExistException e) {
+            return Optional.empty();
+        }
+        // tokens are invalidated by removing the user or changing their roles
+        if (!credentials.roles().equals(roles)) {
+            return Optional.empty();
+        }
+        return Optional.of(credentials.user());
+    }
+}
@@ -1,5 +1,6 @@
 package org.amoseman.tagsystem.backend.dao;
 
+import com.google.common.collect.ImmutableList;
 import org.amoseman.tagsystem.backend.dao.sql.DatabaseConnection;
 
 /**
@@ -11,4 +12,19 @@ public interface DatabaseInitializer {
      * @param connection the connection to the database.
      */
     void init(DatabaseConnection connection);
+
+    /**
+     * Migrate the schema of a database to the latest version.
+     * Each migration is applied at most once, in order.
+     * @param connection the connection to the database.
+     * @return the version of the schema after migrating.
+     */
+    int migrate(DatabaseConnection connection);
+
+    /**
+     * Find the indexes which the data access objects rely upon, but which are missing from a database.
+     * @param connection the connection to the database.
+     * @return the names of the missing indexes.
+     */
+    ImmutableList<String> missingIndexes(DatabaseConnection connection);
 }
@@ -1,10 +1,18 @@
 package org.amoseman.tagsystem.backend.dao;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSetMultimap;
 import org.amoseman.tagsystem.backend.exception.entity.EntityDoesNotExistException;
 import org.amoseman.tagsystem.backend.exception.entity.EntityNotOwnedException;
 import org.amoseman.tagsystem.backend.exception.entity.TagAlreadyOnEntityException;
 import org.amoseman.tagsystem.backend.exception.tag.TagDoesNotExistException;
+import org.amoseman.tagsystem.backend.pojo.EntityPage;
+import org.amoseman.tagsystem.backend.pojo.TaggingResult;
+import org.amoseman.tagsystem.backend.query.TagQuery;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 
 /**
  * The interface of an entity data access object.
@@ -16,6 +24,17 @@ public interface EntityDAO {
      */
     String create(String owner);
 
+    /**
+     * Create many new entities at once, each with the same initial tags.
+     * A tag inherited by another of the tags is left out, as the entities are tagged under it through the other.
+     * @param owner the owner of the entities.
+     * @param count the number of entities to create.
+     * @param tags the initial tags of the entities.
+     * @return the UUIDs of the entities.
+     * @throws TagDoesNotExistException if any of the tags do not exist.
+     */
+    ImmutableList<String> create(String owner, int count, List<String> tags) throws TagDoesNotExistException;
+
     /**
      * Remove an entity.
      * @param owner the owner of the entity.
@@ -25,6 +44,12 @@ public interface EntityDAO {
      */
     void remove(String owner, String uuid) throws EntityDoesNotExistException, EntityNotOwnedException;
 
+    /**
+     * Remove every entity of an owner.
+     * @param owner the owner of the entities.
+     */
+    void removeAll(String owner);
+
     /**
      * Retrieve entities by tag.
      * @param owner the owner of the entities to retrieve.
@@ -34,6 +59,55 @@ public interface EntityDAO {
      */
     ImmutableList<String> retrieve(String owner, RetrievalOperator operator, ImmutableList<String> tags);
 
+    /**
+     * Retrieve a page of entities by tag.
+     * Pages follow an order of the DAO's choosing, and each continues from the cursor of the page before it.
+     * @param owner the owner of the entities to retrieve.
+     * @param operator the operator to use to match by either union or intersection.
+     * @param tags the IDs of the tags to retrieve by.
+     * @param cursor the cursor of the previous page, or null to retrieve the first page.
+     * @param limit the maximum number of entities to retrieve.
+     * @return the page, with a cursor if there are more entities after it.
+     * @throws IllegalArgumentException if the cursor is invalid.
+     */
+    EntityPage retrieve(String owner, RetrievalOperator operator, ImmutableList<String> tags, String cursor, int limit);
+
+    /**
+     * Retrieve entities by a boolean query over tags.
+     * The query is planned using the number of entities tagged under each of its tags before it is evaluated.
+     * @param owner the owner of the entities to retrieve.
+     * @param query the query.
+     * @return the entities retrieved.
+     */
+    ImmutableList<String> query(String owner, TagQuery query);
+
+    /**
+     * Count the entities matching tags, without retrieving them.
+     * @param owner the owner of the entities to count.
+     * @param operator the operator to use to match by either union or intersection.
+     * @param tags the IDs of the tags to match by.
+     * @return the number of entities matched.
+     */
+    int count(String owner, RetrievalOperator operator, ImmutableList<String> tags);
+
+    /**
+     * Check whether any entity matches tags, without retrieving them.
+     * @param owner the owner of the entities to check.
+     * @param operator the operator to use to match by either union or intersection.
+     * @param tags the IDs of the tags to match by.
+     * @return whether any entity is matched.
+     */
+    boolean exists(String owner, RetrievalOperator operator, ImmutableList<String> tags);
+
+    /**
+     * Retrieve entities by tag, passing each to a consumer as it is retrieved, rather than collecting them.
+     * @param owner the owner of the entities to retrieve.
+     * @param operator the operator to use to match by either union or intersection.
+     * @param tags the IDs of the tags to retrieve by.
+     * @param consumer the consumer of the UUIDs of the entities retrieved.
+     */
+    void retrieveEach(String owner, RetrievalOperator operator, ImmutableList<String> tags, Consumer<String> consumer);
+
     /**
      * Add a tag to an entity.
      * @param owner the owner of the entity.
@@ -45,6 +119,16 @@ public interface EntityDAO {
      */
     void addTag(String owner, String uuid, String tag) throws EntityDoesNotExistException, TagDoesNotExistException, EntityNotOwnedException, TagAlreadyOnEntityException;
 
+    /**
+     * Add many tags to many entities at once.
+     * Each tag is applied as if added individually, in order, and failures do not prevent the remaining tags
+     * from being added.
+     * @param owner the owner of the entities.
+     * @param tags the tags to add, keyed by the UUID of the entity.
+     * @return the result of each addition, in order.
+     */
+    ImmutableList<TaggingResult> addTags(String owner, Map<String, List<String>> tags);
+
     /**
      * Remove a tag from an entity.
      * @param owner the owner of the entity.
@@ -65,4 +149,11 @@ public interface EntityDAO {
      * @throws EntityNotOwnedException if the entity is not owned by the provided owner.
      */
     ImmutableList<String> getTags(String owner, String uuid) throws EntityDoesNotExistException, EntityNotOwnedException;
+
+    /**
+     * Get the tags of every tagged entity of an owner.
+     * @param owner the owner of the entities.
+     * @return the tags of each entity, keyed by the UUID of the entity.
+     */
+    ImmutableSetMultimap<String, String> getAllTags(String owner);
 }
@@ -0,0 +1,38 @@
+package org.amoseman.tagsystem.backend.dao;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * The opaque cursors of pages of entities.
+ * A cursor holds the position of the last entity of a page, in the order the entity DAO pages in, so that the next
+ * page seeks past it rather than counting through the pages before it.
+ */
+public final class PageCursor {
+    private PageCursor() {
+
+    }
+
+    /**
+     * Encode the position of the last entity of a page.
+     * @param position the position.
+     * @return the cursor.
+     */
+    public static String encode(int position) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(Integer.toString(position).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Decode the position of the last entity of a page.
+     * @param cursor the cursor.
+     * @return the position.
+     * @throws IllegalArgumentException if the cursor was not encoded here.
+     */
+    public static int decode(String cursor) {
+        int position = Integer.parseInt(new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8));
+        if (position < 0) {
+            throw new IllegalArgumentException("invalid cursor");
+        }
+        return position;
+    }
+}
@@ -2,6 +2,7 @@ package org.amoseman.tagsystem.backend.dao;
 
 import com.google.common.collect.ImmutableList;
 import org.amoseman.tagsystem.backend.exception.tag.*;
+import org.amoseman.tagsystem.backend.pojo.TagSnapshot;
 
 /**
  * The interface of a tag data access object.
@@ -71,4 +72,10 @@ public interface TagDAO {
      * @return all tags.
      */
     ImmutableList<String> listAll();
+
+    /**
+     * Get a snapshot of all tags.
+     * @return the snapshot.
+     */
+    TagSnapshot snapshot();
 }
@@ -0,0 +1,29 @@
+package org.amoseman.tagsystem.backend.dao;
+
+/**
+ * The interface of the statistics of how tags are used.
+ * Counts are of the entities tagged with a tag directly, not through its descendants.
+ */
+public interface TagStatistics {
+    /**
+     * Count the entities tagged with a tag, across every owner.
+     * @param tag the tag.
+     * @return the number of entities.
+     */
+    long count(String tag);
+
+    /**
+     * Count the entities of an owner tagged with a tag.
+     * @param owner the owner.
+     * @param tag the tag.
+     * @return the number of entities.
+     */
+    long count(String owner, String tag);
+
+    /**
+     * Count the owners with entities tagged with a tag.
+     * @param tag the tag.
+     * @return the number of owners.
+     */
+    long owners(String tag);
+}
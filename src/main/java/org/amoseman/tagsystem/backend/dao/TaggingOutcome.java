@@ -0,0 +1,12 @@
+package org.amoseman.tagsystem.backend.dao;
+
+/**
+ * Represents the outcome of adding a tag to an entity.
+ */
+public enum TaggingOutcome {
+    ADDED,
+    ENTITY_DOES_NOT_EXIST,
+    ENTITY_NOT_OWNED,
+    TAG_DOES_NOT_EXIST,
+    TAG_ALREADY_ON_ENTITY
+}
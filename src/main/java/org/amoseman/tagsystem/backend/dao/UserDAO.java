@@ -4,9 +4,11 @@ import org.amoseman.tagsystem.backend.authentication.User;
 import org.amoseman.tagsystem.backend.exception.user.InvalidRoleException;
 import org.amoseman.tagsystem.backend.exception.user.UserDoesNotExistException;
 import org.amoseman.tagsystem.backend.exception.user.UsernameAlreadyInUseException;
+import org.amoseman.tagsystem.backend.pojo.UserCredentials;
 
 public interface UserDAO {
     User getUser(String username) throws UserDoesNotExistException;
+    UserCredentials getCredentials(String username) throws UserDoesNotExistException;
     String getPassword(String username) throws UserDoesNotExistException;
     byte[] getSalt(String username) throws UserDoesNotExistException;
     void addUser(String username, String password) throws UsernameAlreadyInUseException;
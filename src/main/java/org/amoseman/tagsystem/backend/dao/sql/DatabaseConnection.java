@@ -1,58 +1,229 @@
 package org.amoseman.tagsystem.backend.dao.sql;
 
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.jooq.ConnectionProvider;
 import org.jooq.DSLContext;
+import org.jooq.ExecuteListener;
 import org.jooq.SQLDialect;
+import org.jooq.exception.DataAccessException;
 import org.jooq.impl.DSL;
+import org.jooq.impl.DefaultExecuteListenerProvider;
+import org.sqlite.SQLiteConfig;
+import org.sqlite.SQLiteDataSource;
 
+import javax.sql.DataSource;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
- * Represents a connection to a SQL database.
+ * Represents a connection to a SQL database, in either SQLite or PostgreSQL.
+ * Writes go through the main context, while reads may go through a separate reader context.
  */
-public class DatabaseConnection {
-    private final Connection connection;
+public class DatabaseConnection implements AutoCloseable {
+    private static final String SQLITE_PREFIX = "jdbc:sqlite:";
+    private static final int SQLITE_BUSY_TIMEOUT = 5000;
+    private final SQLDialect dialect;
     private final DSLContext context;
+    private final DSLContext reader;
+    private final List<AutoCloseable> resources;
 
     /**
      * Instantiate a database connection.
-     * @param connection the connection to use.
+     * @param dialect the dialect of the database.
+     * @param context the context to use for writes.
+     * @param reader the context to use for reads.
+     * @param resources the resources to close alongside the connection.
      */
-    private DatabaseConnection(final Connection connection) {
-        this.connection = connection;
-        this.context = DSL.using(connection, SQLDialect.SQLITE);
+    private DatabaseConnection(final SQLDialect dialect, final DSLContext context, final DSLContext reader, final List<AutoCloseable> resources) {
+        this.dialect = dialect;
+        this.context = context;
+        this.reader = reader;
+        this.resources = resources;
     }
 
     /**
-     * Generate a database connection using the provided URL.
+     * Generate a database connection to SQLite using the provided URL.
+     * A single JDBC connection is shared by every request, one statement or transaction at a time.
      * @param url the URL of the connection.
      * @return the database connection.
+     * @throws DataAccessException if the database cannot be connected to.
      */
     public static DatabaseConnection generate(final String url) {
+        return generate(url, SQLDialect.SQLITE, null, null);
+    }
+
+    /**
+     * Generate a database connection using the provided URL.
+     * A single JDBC connection is shared by every request, one statement or transaction at a time, as the
+     * transactions of concurrent requests would otherwise interleave their commits and rollbacks on it.
+     * @param url the URL of the connection.
+     * @param dialect the dialect of the database.
+     * @param username the username to connect as, or null if the database does not authenticate.
+     * @param password the password to connect with, or null if the database does not authenticate.
+     * @return the database connection.
+     * @throws DataAccessException if the database cannot be connected to.
+     */
+    public static DatabaseConnection generate(final String url, final SQLDialect dialect, final String username, final String password) {
         try {
-             Connection connection  = DriverManager.getConnection(url);
-             return new DatabaseConnection(connection);
+             Connection connection = SQLDialect.SQLITE == dialect
+                     ? DriverManager.getConnection(url)
+                     : DriverManager.getConnection(url, username, password);
+             DSLContext context = DSL.using(new SerialConnectionProvider(connection), dialect);
+             return new DatabaseConnection(dialect, context, context, List.of(connection));
         }
         catch (SQLException e) {
-            return null;
+            throw new DataAccessException(String.format("failed to connect to %s", url), e);
+        }
+    }
+
+    /**
+     * Generate a pooled database connection to SQLite using the provided URL.
+     * @param url the URL of the connection.
+     * @param poolSize the maximum number of connections to use for reads.
+     * @return the database connection.
+     */
+    public static DatabaseConnection generatePooled(final String url, final int poolSize) {
+        return generatePooled(url, SQLDialect.SQLITE, null, null, poolSize);
+    }
+
+    /**
+     * Generate a pooled database connection using the provided URL.
+     * For SQLite, writes are ordered through a single writer connection, and reads are spread across a pool of
+     * read-only connections in WAL mode. Otherwise, reads and writes share one pool, as the database accepts
+     * concurrent writers.
+     * @param url the URL of the connection.
+     * @param dialect the dialect of the database.
+     * @param username the username to connect as, or null if the database does not authenticate.
+     * @param password the password to connect with, or null if the database does not authenticate.
+     * @param poolSize the maximum number of connections to use for reads.
+     * @return the database connection.
+     */
+    public static DatabaseConnection generatePooled(final String url, final SQLDialect dialect, final String username, final String password, final int poolSize) {
+        List<AutoCloseable> resources = new ArrayList<>();
+        if (SQLDialect.SQLITE != dialect || !url.startsWith(SQLITE_PREFIX)) {
+            HikariDataSource pool = pool("database", url, username, password, poolSize);
+            resources.add(pool);
+            DSLContext context = DSL.using(pool, dialect);
+            return new DatabaseConnection(dialect, context, context, resources);
+        }
+        SQLiteConfig writerConfig = new SQLiteConfig();
+        writerConfig.setJournalMode(SQLiteConfig.JournalMode.WAL);
+        writerConfig.setSynchronous(SQLiteConfig.SynchronousMode.NORMAL);
+        writerConfig.setBusyTimeout(SQLITE_BUSY_TIMEOUT);
+        HikariDataSource writer = pool("database-writer", sqlite(url, writerConfig), 1);
+        resources.add(writer);
+
+        SQLiteConfig readerConfig = new SQLiteConfig();
+        readerConfig.setReadOnly(true);
+        readerConfig.setBusyTimeout(SQLITE_BUSY_TIMEOUT);
+        HikariDataSource readers = pool("database-readers", sqlite(url, readerConfig), poolSize);
+        resources.add(readers);
+
+        return new DatabaseConnection(
+                dialect,
+                DSL.using(writer, SQLDialect.SQLITE),
+                DSL.using(readers, SQLDialect.SQLITE),
+                resources
+        );
+    }
+
+    private static DataSource sqlite(final String url, final SQLiteConfig config) {
+        SQLiteDataSource dataSource = new SQLiteDataSource(config);
+        dataSource.setUrl(url);
+        return dataSource;
+    }
+
+    private static HikariDataSource pool(final String name, final DataSource dataSource, final int size) {
+        HikariConfig config = new HikariConfig();
+        config.setPoolName(name);
+        config.setDataSource(dataSource);
+        config.setMaximumPoolSize(size);
+        return new HikariDataSource(config);
+    }
+
+    private static HikariDataSource pool(final String name, final String url, final String username, final String password, final int size) {
+        HikariConfig config = new HikariConfig();
+        config.setPoolName(name);
+        config.setJdbcUrl(url);
+        config.setUsername(username);
+        config.setPassword(password);
+        config.setMaximumPoolSize(size);
+        return new HikariDataSource(config);
+    }
+
+    /**
+     * Add a listener to every statement executed through the connection, including within transactions.
+     * @param listener the listener.
+     */
+    public void listen(final ExecuteListener listener) {
+        context.configuration().set(new DefaultExecuteListenerProvider(listener));
+        if (reader != context) {
+            reader.configuration().set(new DefaultExecuteListenerProvider(listener));
         }
     }
 
     /**
-     * Get the connection to the database.
-     * @return the connection.
+     * Get the dialect of the database.
+     * To be used by DAOs which take a faster path on some databases.
+     * @return the dialect.
      */
-    public Connection getConnection() {
-        return connection;
+    public SQLDialect dialect() {
+        return dialect;
     }
 
     /**
      * Get the DSLContext for the database connection.
-     * To be used by DAOs for SQL queries.
+     * To be used by DAOs for SQL queries which write to the database.
      * @return the context.
      */
     public DSLContext context() {
         return context;
     }
+
+    /**
+     * Get the DSLContext for reading from the database.
+     * To be used by DAOs for SQL queries which only read from the database.
+     * @return the context.
+     */
+    public DSLContext reader() {
+        return reader;
+    }
+
+    /**
+     * Lends a single JDBC connection to one thread at a time.
+     * jOOQ holds the connection from the start of a transaction until its commit or rollback, so each transaction,
+     * and each statement outside of one, has the connection to itself.
+     */
+    private static final class SerialConnectionProvider implements ConnectionProvider {
+        private final Connection connection;
+        private final ReentrantLock lock;
+
+        private SerialConnectionProvider(final Connection connection) {
+            this.connection = connection;
+            this.lock = new ReentrantLock();
+        }
+
+        @Override
+        public Connection acquire() {
+            lock.lock();
+            return connection;
+        }
+
+        @Override
+        public void release(final Connection connection) {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws Exception {
+        for (AutoCloseable resource : resources) {
+            resource.close();
+        }
+    }
 }
@@ -0,0 +1,77 @@
+package org.amoseman.tagsystem.backend.dao.sql;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.jooq.Field;
+import org.jooq.Record;
+import org.jooq.Table;
+
+import static org.jooq.impl.DSL.field;
+import static org.jooq.impl.DSL.name;
+import static org.jooq.impl.DSL.table;
+
+/**
+ * The IDs the owners of entities are stored by.
+ * An owner is given an ID when it first creates an entity, and keeps it even once all of its entities are removed,
+ * so that a cached ID never goes stale.
+ */
+final class Owners {
+    static final Table<Record> OWNERS = table(name("owners"));
+    static final Field<Integer> ID = field(name("owners", "id"), Integer.class);
+    static final Field<String> NAME = field(name("owners", "name"), String.class);
+    private static final long CACHE_SIZE = 10_000;
+    private final DatabaseConnection connection;
+    private final Cache<String, Integer> ids;
+
+    /**
+     * Instantiate the owners.
+     * @param connection the connection to the database.
+     */
+    Owners(DatabaseConnection connection) {
+        this.connection = connection;
+        this.ids = CacheBuilder.newBuilder()
+                .maximumSize(CACHE_SIZE)
+                .build();
+    }
+
+    /**
+     * Get the ID of an owner.
+     * @param owner the owner.
+     * @return the ID, or null if the owner has never created an entity.
+     */
+    Integer find(String owner) {
+        Integer id = ids.getIfPresent(owner);
+        if (null != id) {
+            return id;
+        }
+        id = connection.reader()
+                .select(ID)
+                .from(OWNERS)
+                .where(NAME.eq(owner))
+                .fetchOne(ID);
+        if (null != id) {
+            ids.put(owner, id);
+        }
+        return id;
+    }
+
+    /**
+     * Get the ID of an owner, giving the owner one if it has none.
+     * Committed on its own rather than within the transaction creating the entities, so that an ID is never cached
+     * for an owner whose row was rolled back.
+     * @param owner the owner.
+     * @return the ID.
+     */
+    int obtain(String owner) {
+        Integer id = find(owner);
+        if (null != id) {
+            return id;
+        }
+        connection.context()
+                .insertInto(OWNERS, field(name("name"), String.class))
+                .values(owner)
+                .onConflictDoNothing()
+                .execute();
+        return find(owner);
+    }
+}
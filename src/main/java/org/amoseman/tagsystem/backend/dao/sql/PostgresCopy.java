@@ -0,0 +1,34 @@
+package org.amoseman.tagsystem.backend.dao.sql;
+
+import org.jooq.DSLContext;
+import org.postgresql.PGConnection;
+
+import java.io.StringReader;
+import java.util.List;
+
+/**
+ * Bulk loads rows into PostgreSQL with COPY, which streams every row through a single statement rather than
+ * binding each value as a parameter.
+ */
+final class PostgresCopy {
+    private PostgresCopy() {
+
+    }
+
+    /**
+     * Load new entities of a single owner.
+     * @param context the context of the transaction creating the entities.
+     * @param uuids the UUIDs of the entities.
+     * @param owner the ID of the owner.
+     */
+    static void entities(DSLContext context, List<String> uuids, int owner) {
+        StringBuilder rows = new StringBuilder(uuids.size() * 48);
+        for (String uuid : uuids) {
+            rows.append(uuid).append('\t').append(owner).append('\n');
+        }
+        context.connection(connection -> connection
+                .unwrap(PGConnection.class)
+                .getCopyAPI()
+                .copyIn("COPY entities (uuid, owner) FROM STDIN", new StringReader(rows.toString())));
+    }
+}
@@ -0,0 +1,104 @@
+package org.amoseman.tagsystem.backend.dao.sql;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import org.amoseman.tagsystem.backend.authentication.AuthenticationCache;
+import org.amoseman.tagsystem.backend.authentication.HashingExecutor;
+import org.amoseman.tagsystem.backend.dao.DatabaseInitializer;
+import org.amoseman.tagsystem.backend.dao.EntityDAO;
+import org.amoseman.tagsystem.backend.dao.TagStatistics;
+import org.amoseman.tagsystem.backend.dao.UserDAO;
+import org.amoseman.tagsystem.backend.index.RetrievalCache;
+import org.amoseman.tagsystem.backend.index.TagHierarchyIndex;
+import org.jooq.SQLDialect;
+
+import java.util.Locale;
+
+/**
+ * Builds the data access objects of a SQL database.
+ * Every statement is rendered by jOOQ for the dialect of the connection, and the data access objects take a faster
+ * path where the database offers one, so the same data access objects serve both SQLite and PostgreSQL.
+ */
+public class SQLBackend {
+    private static final ImmutableSet<SQLDialect> DIALECTS = ImmutableSet.of(SQLDialect.SQLITE, SQLDialect.POSTGRES);
+    private final DatabaseConnection connection;
+
+    /**
+     * Instantiate a SQL backend.
+     * @param connection the connection to the database.
+     */
+    public SQLBackend(DatabaseConnection connection) {
+        Preconditions.checkArgument(DIALECTS.contains(connection.dialect().family()), "unsupported dialect %s", connection.dialect());
+        this.connection = connection;
+    }
+
+    /**
+     * Parse the name of a supported dialect.
+     * @param name the name, such as SQLITE or POSTGRES, in any case.
+     * @return the dialect.
+     */
+    public static SQLDialect dialect(String name) {
+        SQLDialect dialect = SQLDialect.valueOf(name.toUpperCase(Locale.ROOT));
+        Preconditions.checkArgument(DIALECTS.contains(dialect.family()), "unsupported dialect %s", name);
+        return dialect;
+    }
+
+    /**
+     * Connect to a database.
+     * @param url the URL of the database.
+     * @param dialect the dialect of the database.
+     * @param username the username to connect as.
+     * @param password the password to connect with.
+     * @param pooled whether to pool connections.
+     * @param poolSize the maximum number of connections to use for reads, if pooled.
+     * @return the connection.
+     */
+    public static DatabaseConnection connect(String url, SQLDialect dialect, String username, String password, boolean pooled, int poolSize) {
+        return pooled
+                ? DatabaseConnection.generatePooled(url, dialect, username, password, poolSize)
+                : DatabaseConnection.generate(url, dialect, username, password);
+    }
+
+    public DatabaseConnection connection() {
+        return connection;
+    }
+
+    public DatabaseInitializer initializer() {
+        return new SQLDatabaseInitializer();
+    }
+
+    /**
+     * Build the tag DAO.
+     * @param hierarchy the tag hierarchy index to load and maintain, or null if the hierarchy is not cached.
+     * @param retrievalCache the retrieval cache to invalidate on changes to the hierarchy, or null if retrievals are not cached.
+     * @return the tag DAO.
+     */
+    public SQLTagDAO tagDAO(TagHierarchyIndex hierarchy, RetrievalCache retrievalCache) {
+        return new SQLTagDAO(connection, hierarchy, retrievalCache);
+    }
+
+    /**
+     * Build the entity DAO.
+     * @param tagDAO the tag DAO built by this backend.
+     * @param hierarchy the cached tag hierarchy, or null if the hierarchy is not cached.
+     * @return the entity DAO.
+     */
+    public SQLEntityDAO entityDAO(SQLTagDAO tagDAO, TagHierarchyIndex hierarchy) {
+        return new SQLEntityDAO(connection, tagDAO, hierarchy);
+    }
+
+    /**
+     * Build the user DAO.
+     * @param hasher the executor to hash passwords on.
+     * @param entityDAO the entity DAO, to remove the entities of deleted users through.
+     * @param authenticationCache the authentication cache to invalidate on changes to users.
+     * @return the user DAO.
+     */
+    public UserDAO userDAO(HashingExecutor hasher, EntityDAO entityDAO, AuthenticationCache authenticationCache) {
+        return new SQLUserDAO(connection, hasher, entityDAO, authenticationCache);
+    }
+
+    public TagStatistics tagStatistics() {
+        return new SQLTagStatistics(connection);
+    }
+}
@@ -1,20 +1,97 @@
 package org.amoseman.tagsystem.backend.dao.sql;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import org.amoseman.tagsystem.backend.dao.DatabaseInitializer;
+import org.jooq.Constraint;
+import org.jooq.DSLContext;
+import org.jooq.Index;
+import org.jooq.SQLDialect;
+import org.jooq.impl.DSL;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 import static org.jooq.impl.DSL.*;
 import static org.jooq.impl.SQLDataType.*;
 
 public class SQLDatabaseInitializer implements DatabaseInitializer {
+    /**
+     * The indexes the data access objects rely upon, keyed by name, with the table they belong to.
+     */
+    private static final ImmutableMap<String, String> INDEXES = ImmutableMap.of(
+            "entities_owner_idx", "entities",
+            "entity_tags_owner_tag_idx", "entity_tags",
+            "tag_children_child_idx", "tag_children",
+            "tag_counts_tag_idx", "tag_counts"
+    );
+    private final List<Migration> migrations = List.of(
+            this::initTables,
+            this::keysAndIndexes,
+            this::tagCounts,
+            this::surrogateKeys
+    );
+
     @Override
     public void init(DatabaseConnection connection) {
-        initTagsTable(connection);
-        initEntitiesTable(connection);
-        initUsersTable(connection);
+        migrate(connection);
     }
 
-    private void initTagsTable(DatabaseConnection connection) {
+    @Override
+    public int migrate(DatabaseConnection connection) {
         connection.context()
+                .createTableIfNotExists("schema_version")
+                .column(field("version"), INTEGER)
+                .execute();
+        Integer current = connection.context()
+                .select(max(field("version", Integer.class)))
+                .from(table("schema_version"))
+                .fetchOne(0, Integer.class);
+        int version = null == current ? 0 : current;
+        while (version < migrations.size()) {
+            Migration migration = migrations.get(version);
+            int next = version + 1;
+            connection.context().transaction(configuration -> {
+                DSLContext context = DSL.using(configuration);
+                migration.apply(context);
+                context.insertInto(table("schema_version"), field("version"))
+                        .values(next)
+                        .execute();
+            });
+            version = next;
+        }
+        return version;
+    }
+
+    @Override
+    public ImmutableList<String> missingIndexes(DatabaseConnection connection) {
+        Set<String> present = connection.reader()
+                .meta()
+                .getIndexes()
+                .stream()
+                .map(Index::getName)
+                .map(name -> name.toLowerCase(Locale.ROOT))
+                .collect(Collectors.toSet());
+        return INDEXES.keySet()
+                .stream()
+                .filter(name -> !present.contains(name))
+                .collect(ImmutableList.toImmutableList());
+    }
+
+    /**
+     * Version 1: the original schema.
+     */
+    private void initTables(DSLContext context) {
+        initTagsTable(context);
+        initEntitiesTable(context);
+        initUsersTable(context);
+    }
+
+    private void initTagsTable(DSLContext context) {
+        context
                 .createTableIfNotExists("tags")
                 .column(field("name"), VARCHAR(32))
                 .constraints(
@@ -23,7 +100,7 @@ public class SQLDatabaseInitializer implements DatabaseInitializer {
                 )
                 .execute();
 
-        connection.context()
+        context
                 .createTableIfNotExists("tag_children")
                 .column(field("parent"), VARCHAR(32))
                 .column(field("child"), VARCHAR(32))
@@ -33,8 +110,8 @@ public class SQLDatabaseInitializer implements DatabaseInitializer {
                 .execute();
     }
 
-    private void initEntitiesTable(DatabaseConnection connection) {
-        connection.context()
+    private void initEntitiesTable(DSLContext context) {
+        context
                 .createTableIfNotExists("entities")
                 .column(field("owner"), VARCHAR(36))
                 .column(field("uuid"), VARCHAR(36))
@@ -44,7 +121,7 @@ public class SQLDatabaseInitializer implements DatabaseInitializer {
                 )
                 .execute();
 
-        connection.context()
+        context
                 .createTableIfNotExists("entity_tags")
                 .column(field("entity"), VARCHAR(36))
                 .column(field("tag"), VARCHAR(32))
@@ -56,8 +133,8 @@ public class SQLDatabaseInitializer implements DatabaseInitializer {
 
     }
 
-    private void initUsersTable(DatabaseConnection connection) {
-        connection.context()
+    private void initUsersTable(DSLContext context) {
+        context
                 .createTableIfNotExists("users")
                 .column(field("username"), VARCHAR(64))
                 .column(field("password"), VARCHAR(64))
@@ -69,4 +146,205 @@ public class SQLDatabaseInitializer implements DatabaseInitializer {
                 )
                 .execute();
     }
+
+    /**
+     * Version 2: key entities by UUID, tag inheritance by both tags, and entity tags by entity and tag,
+     * and index each remaining access path of the data access objects.
+     */
+    private void keysAndIndexes(DSLContext context) {
+        context.createTable("entities_v2")
+                .column("owner", VARCHAR(36).notNull())
+                .column("uuid", VARCHAR(36).notNull())
+                .constraints(primaryKey("uuid"))
+                .execute();
+        context.insertInto(table("entities_v2"), field("owner"), field("uuid"))
+                .select(select(max(field("owner")), field("uuid"))
+                        .from(table("entities"))
+                        .groupBy(field("uuid")))
+                .execute();
+        replace(context, "entities_v2", "entities");
+        context.createIndex("entities_owner_idx")
+                .on("entities", "owner")
+                .execute();
+
+        context.createTable("tag_children_v2")
+                .column("parent", VARCHAR(32).notNull())
+                .column("child", VARCHAR(32).notNull())
+                .constraints(primaryKey("parent", "child"))
+                .execute();
+        context.insertInto(table("tag_children_v2"), field("parent"), field("child"))
+                .select(selectDistinct(field("parent"), field("child"))
+                        .from(table("tag_children")))
+                .execute();
+        replace(context, "tag_children_v2", "tag_children");
+        context.createIndex("tag_children_child_idx")
+                .on("tag_children", "child", "parent")
+                .execute();
+
+        context.createTable("entity_tags_v2")
+                .column("entity", VARCHAR(36).notNull())
+                .column("tag", VARCHAR(32).notNull())
+                .column("owner", VARCHAR(36).notNull())
+                .constraints(primaryKey("entity", "tag"))
+                .execute();
+        context.insertInto(table("entity_tags_v2"), field("entity"), field("tag"), field("owner"))
+                .select(select(field("entity"), field("tag"), max(field("owner")))
+                        .from(table("entity_tags"))
+                        .groupBy(field("entity"), field("tag")))
+                .execute();
+        replace(context, "entity_tags_v2", "entity_tags");
+        // covers retrieval, which filters by owner and tag and only reads the entity
+        context.createIndex("entity_tags_owner_tag_idx")
+                .on("entity_tags", "owner", "tag", "entity")
+                .execute();
+    }
+
+    /**
+     * Version 3: count the entities of each owner tagged with each tag.
+     */
+    private void tagCounts(DSLContext context) {
+        context.createTable("tag_counts")
+                .column("owner", VARCHAR(36).notNull())
+                .column("tag", VARCHAR(32).notNull())
+                .column("entity_count", INTEGER.notNull())
+                .constraints(primaryKey("owner", "tag"))
+                .execute();
+        context.insertInto(table("tag_counts"), field("owner"), field("tag"), field("entity_count"))
+                .select(select(field("owner"), field("tag"), count())
+                        .from(table("entity_tags"))
+                        .groupBy(field("owner"), field("tag")))
+                .execute();
+        // covers the statistics of a tag across every owner
+        context.createIndex("tag_counts_tag_idx")
+                .on("tag_counts", "tag", "entity_count")
+                .execute();
+    }
+
+    /**
+     * Version 4: store tags, owners, and entities by integer IDs wherever they are referenced,
+     * so that the junction tables and their indexes hold integers rather than names and UUIDs.
+     * Tags of entities which no longer exist, and of tags which have been deleted, are dropped.
+     */
+    private void surrogateKeys(DSLContext context) {
+        // identity columns are never reused, so an ID left behind by a deleted tag cannot refer to a new one
+        context.createTable("tags_v4")
+                .column("id", INTEGER.identity(true))
+                .column("name", VARCHAR(32).notNull())
+                .constraints(identityKey(context, unique("name")))
+                .execute();
+        context.insertInto(table("tags_v4"), field("name"))
+                .select(select(field("name")).from(table("tags")))
+                .execute();
+
+        context.createTable("owners")
+                .column("id", INTEGER.identity(true))
+                .column("name", VARCHAR(64).notNull())
+                .constraints(identityKey(context, unique("name")))
+                .execute();
+        context.insertInto(table("owners"), field("name"))
+                .select(selectDistinct(field("owner")).from(table("entities")))
+                .execute();
+
+        context.createTable("entities_v4")
+                .column("id", INTEGER.identity(true))
+                .column("uuid", VARCHAR(36).notNull())
+                .column("owner", INTEGER.notNull())
+                .constraints(identityKey(context, unique("uuid")))
+                .execute();
+        context.insertInto(table("entities_v4"), field("uuid"), field("owner"))
+                .select(select(field(name("entities", "uuid")), field(name("owners", "id")))
+                        .from(table("entities"))
+                        .join(table("owners"))
+                        .on(field(name("owners", "name")).eq(field(name("entities", "owner")))))
+                .execute();
+
+        context.createTable("tag_children_v4")
+                .column("parent", INTEGER.notNull())
+                .column("child", INTEGER.notNull())
+                .constraints(primaryKey("parent", "child"))
+                .execute();
+        context.insertInto(table("tag_children_v4"), field("parent"), field("child"))
+                .select(select(field(name("parents", "id")), field(name("children", "id")))
+                        .from(table("tag_children"))
+                        .join(table("tags_v4").as("parents"))
+                        .on(field(name("parents", "name")).eq(field(name("tag_children", "parent"))))
+                        .join(table("tags_v4").as("children"))
+                        .on(field(name("children", "name")).eq(field(name("tag_children", "child")))))
+                .execute();
+
+        context.createTable("entity_tags_v4")
+                .column("entity", INTEGER.notNull())
+                .column("tag", INTEGER.notNull())
+                .column("owner", INTEGER.notNull())
+                .constraints(primaryKey("entity", "tag"))
+                .execute();
+        context.insertInto(table("entity_tags_v4"), field("entity"), field("tag"), field("owner"))
+                .select(select(field(name("entities_v4", "id")), field(name("tags_v4", "id")), field(name("entities_v4", "owner")))
+                        .from(table("entity_tags"))
+                        .join(table("entities_v4"))
+                        .on(field(name("entities_v4", "uuid")).eq(field(name("entity_tags", "entity"))))
+                        .join(table("tags_v4"))
+                        .on(field(name("tags_v4", "name")).eq(field(name("entity_tags", "tag")))))
+                .execute();
+
+        context.createTable("tag_counts_v4")
+                .column("owner", INTEGER.notNull())
+                .column("tag", INTEGER.notNull())
+                .column("entity_count", INTEGER.notNull())
+                .constraints(primaryKey("owner", "tag"))
+                .execute();
+        context.insertInto(table("tag_counts_v4"), field("owner"), field("tag"), field("entity_count"))
+                .select(select(field("owner"), field("tag"), count())
+                        .from(table("entity_tags_v4"))
+                        .groupBy(field("owner"), field("tag")))
+                .execute();
+
+        replace(context, "tags_v4", "tags");
+        replace(context, "entities_v4", "entities");
+        replace(context, "tag_children_v4", "tag_children");
+        replace(context, "entity_tags_v4", "entity_tags");
+        replace(context, "tag_counts_v4", "tag_counts");
+        context.createIndex("entities_owner_idx")
+                .on("entities", "owner")
+                .execute();
+        context.createIndex("tag_children_child_idx")
+                .on("tag_children", "child", "parent")
+                .execute();
+        context.createIndex("entity_tags_owner_tag_idx")
+                .on("entity_tags", "owner", "tag", "entity")
+                .execute();
+        context.createIndex("tag_counts_tag_idx")
+                .on("tag_counts", "tag", "entity_count")
+                .execute();
+    }
+
+    private void replace(DSLContext context, String replacement, String original) {
+        if (SQLDialect.POSTGRES == context.family()) {
+            // PostgreSQL refuses to drop a table still referenced by a foreign key of the original schema
+            context.dropTable(original).cascade().execute();
+        }
+        else {
+            context.dropTable(original).execute();
+        }
+        context.alterTable(replacement).renameTo(original).execute();
+    }
+
+    /**
+     * Add the primary key of a table keyed by an identity column named id.
+     * SQLite already makes an identity column the primary key, and rejects a second one.
+     */
+    private List<Constraint> identityKey(DSLContext context, Constraint... constraints) {
+        List<Constraint> all = new ArrayList<>(List.of(constraints));
+        if (SQLDialect.SQLITE != context.family()) {
+            all.add(primaryKey("id"));
+        }
+        return all;
+    }
+
+    /**
+     * Represents a single step in the evolution of the schema.
+     */
+    private interface Migration {
+        void apply(DSLContext context);
+    }
 }
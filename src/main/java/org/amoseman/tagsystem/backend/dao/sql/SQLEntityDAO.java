@@ -1,213 +1,814 @@
 package org.amoseman.tagsystem.backend.dao.sql;
 
 import com.google.common.collect.ImmutableList;
-import org.amoseman.tagsystem.backend.dao.TagDAO;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
 import org.amoseman.tagsystem.backend.exception.entity.EntityNotOwnedException;
 import org.amoseman.tagsystem.backend.exception.entity.TagAlreadyOnEntityException;
 import org.amoseman.tagsystem.backend.exception.tag.TagDoesNotExistException;
 import org.amoseman.tagsystem.backend.dao.EntityDAO;
+import org.amoseman.tagsystem.backend.dao.PageCursor;
 import org.amoseman.tagsystem.backend.dao.RetrievalOperator;
+import org.amoseman.tagsystem.backend.dao.TaggingOutcome;
 import org.amoseman.tagsystem.backend.exception.entity.EntityDoesNotExistException;
+import org.amoseman.tagsystem.backend.index.TagHierarchyIndex;
+import org.amoseman.tagsystem.backend.pojo.EntityPage;
+import org.amoseman.tagsystem.backend.pojo.TaggingResult;
+import org.jooq.BatchBindStep;
+import org.amoseman.tagsystem.backend.query.QueryPlanner;
+import org.amoseman.tagsystem.backend.query.TagQuery;
+import org.jooq.CommonTableExpression;
 import org.jooq.Condition;
+import org.jooq.DSLContext;
+import org.jooq.Field;
+import org.jooq.InsertValuesStep2;
 import org.jooq.Record;
+import org.jooq.Record1;
+import org.jooq.Record2;
 import org.jooq.Result;
+import org.jooq.ResultQuery;
+import org.jooq.SQLDialect;
+import org.jooq.SelectFieldOrAsterisk;
+import org.jooq.SelectForUpdateStep;
+import org.jooq.SelectHavingConditionStep;
+import org.jooq.SelectSelectStep;
 import org.jooq.Table;
 import org.jooq.impl.DSL;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.UUID;
+import java.util.*;
+import java.util.function.Consumer;
 
 import static org.jooq.impl.DSL.*;
 
+/**
+ * Stores entities and their tags in SQL.
+ * Entities, tags, and owners are stored by integer IDs wherever they are referenced, and are translated to and from
+ * their UUIDs and names here, so that the tags of entities and their indexes hold only integers.
+ * On PostgreSQL, new entities are bulk loaded with COPY, and UUIDs are looked up as a single array parameter.
+ */
 public class SQLEntityDAO implements EntityDAO {
-    private static final Table<Record> ENTITIES = table("entities");
+    private static final Table<Record> ENTITIES = table(name("entities"));
+    private static final Field<Integer> ENTITY_ID = field(name("entities", "id"), Integer.class);
+    private static final Field<String> ENTITY_UUID = field(name("entities", "uuid"), String.class);
+    private static final Field<Integer> ENTITY_OWNER = field(name("entities", "owner"), Integer.class);
+    private static final Table<Record> TAGS = table(name("tags"));
+    private static final Field<Integer> TAG_ID = field(name("tags", "id"), Integer.class);
+    private static final Table<Record> ENTITY_TAGS = table(name("entity_tags"));
+    private static final Field<Integer> TAGGED_ENTITY = field(name("entity_tags", "entity"), Integer.class);
+    private static final Field<Integer> TAGGED_TAG = field(name("entity_tags", "tag"), Integer.class);
+    private static final Field<Integer> TAGGED_OWNER = field(name("entity_tags", "owner"), Integer.class);
+    private static final Field<String> UUID_COLUMN = field(name("uuid"), String.class);
+    private static final Field<Integer> OWNER_COLUMN = field(name("owner"), Integer.class);
+    private static final Field<Integer> ENTITY_COLUMN = field(name("entity"), Integer.class);
+    private static final Field<Integer> TAG_COLUMN = field(name("tag"), Integer.class);
+    private static final Field<Integer> ID_COLUMN = field(name("id"), Integer.class);
+    private static final String EXPANSION = "expansion";
+    private static final int BATCH_SIZE = 500;
+    private static final int STREAM_PAGE_SIZE = 10_000;
     private final DatabaseConnection connection;
-    private final TagDAO tagDAO;
+    private final SQLTagDAO tagDAO;
+    private final TagHierarchyIndex hierarchy;
+    private final Owners owners;
+    private final UUIDGenerator generator;
+    private final boolean postgres;
 
-    public SQLEntityDAO(DatabaseConnection connection, TagDAO tagDAO) {
+    /**
+     * Instantiate a SQL entity DAO.
+     * @param connection the connection to the database.
+     * @param tagDAO the tag DAO, which holds the IDs the tags are stored by.
+     * @param hierarchy the cached tag hierarchy, or null if the hierarchy is not cached.
+     */
+    public SQLEntityDAO(DatabaseConnection connection, SQLTagDAO tagDAO, TagHierarchyIndex hierarchy) {
         this.connection = connection;
         this.tagDAO = tagDAO;
+        this.hierarchy = hierarchy;
+        this.owners = new Owners(connection);
+        this.generator = new UUIDGenerator();
+        this.postgres = SQLDialect.POSTGRES == connection.dialect().family();
     }
 
-    private boolean owns(String owner, String uuid) {
-        return 1 == connection.context()
-                .selectFrom(table("entities"))
-                .where(field("owner").eq(owner).and(field("uuid").eq(uuid)))
-                .fetch()
-                .size();
+    /**
+     * Split UUIDs into the groups to look them up in.
+     * PostgreSQL binds each group as a single array, so only SQLite, which binds each UUID, needs them split.
+     * @param uuids the UUIDs.
+     * @return the groups.
+     */
+    private Iterable<List<String>> partition(Iterable<String> uuids) {
+        return postgres ? List.of(ImmutableList.copyOf(uuids)) : Iterables.partition(uuids, BATCH_SIZE);
+    }
+
+    private Condition uuidIn(List<String> uuids) {
+        return postgres
+                ? ENTITY_UUID.eq(any(uuids.toArray(new String[0])))
+                : ENTITY_UUID.in(uuids);
+    }
+
+    /**
+     * Explain why a statement restricted to an entity of an owner did not affect the entity.
+     * Ownership is enforced by the statements themselves, so this is only queried when they fail.
+     * @param owner the owner.
+     * @param uuid the UUID of the entity.
+     * @throws EntityNotOwnedException if the entity is owned by another owner.
+     * @throws EntityDoesNotExistException otherwise.
+     */
+    private void explainFailure(String owner, String uuid) throws EntityDoesNotExistException, EntityNotOwnedException {
+        Integer actual = connection.reader()
+                .select(ENTITY_OWNER)
+                .from(ENTITIES)
+                .where(ENTITY_UUID.eq(uuid))
+                .fetchOne(ENTITY_OWNER);
+        if (null != actual && !actual.equals(owners.find(owner))) {
+            throw new EntityNotOwnedException(owner, uuid);
+        }
+        throw new EntityDoesNotExistException(uuid);
+    }
+
+    /**
+     * Translate tags into the IDs they are stored by.
+     * @param tags the names of the tags.
+     * @return the ID of each tag, keyed by name, leaving out those which do not exist.
+     */
+    private ImmutableMap<String, Integer> tagIds(Collection<String> tags) {
+        ImmutableMap.Builder<String, Integer> ids = ImmutableMap.builder();
+        for (String tag : ImmutableSet.copyOf(tags)) {
+            Integer id = tagDAO.id(tag);
+            if (null != id) {
+                ids.put(tag, id);
+            }
+        }
+        return ids.build();
     }
 
     @Override
     public String create(String owner) {
         String uuid = UUID.randomUUID().toString();
+        int ownerId = owners.obtain(owner);
         connection.context()
                 .insertInto(
                         ENTITIES,
-                        field("owner"),
-                        field("uuid")
+                        UUID_COLUMN,
+                        OWNER_COLUMN
                 )
-                .values(owner, uuid)
+                .values(uuid, ownerId)
                 .execute();
         return uuid;
     }
 
+    @Override
+    public ImmutableList<String> create(String owner, int count, List<String> tags) throws TagDoesNotExistException {
+        Map<Integer, ImmutableList<Integer>> requested = new LinkedHashMap<>();
+        Map<Integer, String> names = new HashMap<>();
+        for (String tag : tags) {
+            Integer id = tagDAO.id(tag);
+            if (null == id) {
+                throw new TagDoesNotExistException(tag);
+            }
+            requested.put(id, ancestors(tag, id));
+            names.put(id, tag);
+        }
+        // a tag inherited by another of the tags is left out, whichever order the tags are given in
+        Set<Integer> initial = new LinkedHashSet<>(requested.keySet());
+        requested.values().forEach(initial::removeAll);
+        int ownerId = owners.obtain(owner);
+        ImmutableList<String> uuids = generator.generate(count);
+        Integer deleted = connection.context().transactionResult(configuration -> {
+            DSLContext context = DSL.using(configuration);
+            if (!initial.isEmpty()) {
+                // the tags are checked again within the transaction, and held on PostgreSQL until it ends, so that
+                // the entities are never tagged with a tag deleted since it was looked up
+                SelectForUpdateStep<Record1<Integer>> check = context.select(TAG_ID).from(TAGS).where(TAG_ID.in(initial));
+                ResultQuery<Record1<Integer>> existing = postgres ? check.forShare() : check;
+                Set<Integer> found = new HashSet<>(existing.fetch(TAG_ID));
+                for (Integer tag : initial) {
+                    if (!found.contains(tag)) {
+                        return tag;
+                    }
+                }
+            }
+            if (postgres) {
+                PostgresCopy.entities(context, uuids, ownerId);
+            }
+            else {
+                for (List<String> partition : Lists.partition(uuids, BATCH_SIZE)) {
+                    InsertValuesStep2<Record, String, Integer> insert = context.insertInto(ENTITIES, UUID_COLUMN, OWNER_COLUMN);
+                    for (String uuid : partition) {
+                        insert = insert.values(uuid, ownerId);
+                    }
+                    insert.execute();
+                }
+            }
+            if (initial.isEmpty()) {
+                return null;
+            }
+            Map<Integer, Integer> deltas = new HashMap<>();
+            initial.forEach(tag -> deltas.put(tag, count));
+            TagCounts.adjust(context, ownerId, deltas);
+            // the IDs the entities were just given are read back by UUID within the same statement
+            for (List<String> partition : partition(uuids)) {
+                for (Integer tag : initial) {
+                    context.insertInto(ENTITY_TAGS, ENTITY_COLUMN, TAG_COLUMN, OWNER_COLUMN)
+                            .select(select(ENTITY_ID, val(tag), ENTITY_OWNER)
+                                    .from(ENTITIES)
+                                    .where(uuidIn(partition)))
+                            .execute();
+                }
+            }
+            return null;
+        });
+        if (null != deleted) {
+            throw new TagDoesNotExistException(names.get(deleted));
+        }
+        return uuids;
+    }
+
     @Override
     public void remove(String owner, String uuid) throws EntityDoesNotExistException, EntityNotOwnedException {
-        if (!owns(owner, uuid)) {
-            throw new EntityNotOwnedException(owner, uuid);
+        Integer ownerId = owners.find(owner);
+        if (null == ownerId) {
+            explainFailure(owner, uuid);
         }
-        int result = connection.context()
-                .deleteFrom(ENTITIES)
-                .where(field("uuid").eq(uuid))
-                .execute();
-        if (0 == result) {
-            throw new EntityDoesNotExistException(uuid);
+        boolean removed = connection.context().transactionResult(configuration -> {
+            DSLContext context = DSL.using(configuration);
+            // the counts are adjusted by what the deletes removed, rather than by what an earlier read saw,
+            // as on PostgreSQL other transactions may change the tags of the entity in between
+            Integer entity = context
+                    .deleteFrom(ENTITIES)
+                    .where(ENTITY_UUID.eq(uuid).and(ENTITY_OWNER.eq(ownerId)))
+                    .returningResult(ID_COLUMN)
+                    .fetchOne(ID_COLUMN);
+            if (null == entity) {
+                return false;
+            }
+            Map<Integer, Integer> deltas = new HashMap<>();
+            context.deleteFrom(ENTITY_TAGS)
+                    .where(TAGGED_ENTITY.eq(entity))
+                    .returningResult(TAG_COLUMN)
+                    .fetch(TAG_COLUMN)
+                    .forEach(tag -> deltas.put(tag, -1));
+            TagCounts.adjust(context, ownerId, deltas);
+            return true;
+        });
+        if (!removed) {
+            explainFailure(owner, uuid);
         }
-        connection.context()
-                .deleteFrom(table("entity_tags"))
-                .where(field("entity").eq(uuid))
-                .execute();
     }
 
     @Override
-    public ImmutableList<String> retrieve(String owner, RetrievalOperator operator, ImmutableList<String> tags) {
-        ImmutableList<TagGroup> tagGroups = effectiveTags(tags);
-        Condition condition = getCondition(owner, operator, tagGroups);
-        Result<Record> result = connection.context()
-                .selectFrom("entity_tags")
-                .where(condition)
-                .fetch();
-        List<String> entities = new ArrayList<>();
-        result.forEach(record -> {
-            String uuid = record.get(field("entity"), String.class);
-            entities.add(uuid);
+    public void removeAll(String owner) {
+        Integer ownerId = owners.find(owner);
+        if (null == ownerId) {
+            return;
+        }
+        connection.context().transaction(configuration -> {
+            DSLContext context = DSL.using(configuration);
+            context.deleteFrom(ENTITIES)
+                    .where(ENTITY_OWNER.eq(ownerId))
+                    .execute();
+            context.deleteFrom(ENTITY_TAGS)
+                    .where(TAGGED_OWNER.eq(ownerId))
+                    .execute();
+            context.deleteFrom(TagCounts.TAG_COUNTS)
+                    .where(TagCounts.OWNER.eq(ownerId))
+                    .execute();
         });
-        return ImmutableList.copyOf(entities);
     }
 
-    private ImmutableList<TagGroup> effectiveTags(ImmutableList<String> rootTags) {
-        List<TagGroup> groups = new ArrayList<>();
-        for (String tag : rootTags) {
-            List<String> group = new ArrayList<>();
-            effectiveTagsHelper(group, tag);
-            groups.add(new TagGroup(ImmutableList.copyOf(group)));
+    @Override
+    public ImmutableList<String> retrieve(String owner, RetrievalOperator operator, ImmutableList<String> tags) {
+        SelectHavingConditionStep<Record2<Integer, String>> query = retrievalQuery(owner, operator, tags, null);
+        if (null == query) {
+            return ImmutableList.of();
         }
-        return ImmutableList.copyOf(groups);
+        return ImmutableList.copyOf(query.fetch(ENTITY_UUID));
+    }
+
+    @Override
+    public EntityPage retrieve(String owner, RetrievalOperator operator, ImmutableList<String> tags, String cursor, int limit) {
+        Integer after = null == cursor ? null : PageCursor.decode(cursor);
+        // one more entity than the limit is retrieved, to know whether there is a next page
+        List<Record2<Integer, String>> page = page(owner, operator, tags, after, limit + 1);
+        String next = null;
+        if (page.size() > limit) {
+            page = page.subList(0, limit);
+            next = PageCursor.encode(page.get(limit - 1).value1());
+        }
+        return new EntityPage(page.stream().map(Record2::value2).toList(), next);
     }
 
-    private void effectiveTagsHelper(List<String> group, String tag) {
-        Result<Record> result = connection.context()
-                .selectFrom(table("tag_children"))
-                .where(field("parent").eq(tag))
+    /**
+     * Retrieve a page of entities by tag, in order of entity ID.
+     * Paging by ID, rather than by UUID, lets each tag seek to the start of the page through the index of the tags of
+     * the entities, which holds the owner, tag, and entity, so that a page costs the same however far in it starts.
+     * @param owner the owner of the entities.
+     * @param operator the operator to use.
+     * @param tags the tags to retrieve by.
+     * @param after the ID of the last entity of the previous page, or null to retrieve the first page.
+     * @param limit the maximum number of entities to retrieve.
+     * @return the ID and UUID of each entity retrieved.
+     */
+    private List<Record2<Integer, String>> page(String owner, RetrievalOperator operator, ImmutableList<String> tags, Integer after, int limit) {
+        SelectHavingConditionStep<Record2<Integer, String>> query = retrievalQuery(owner, operator, tags, after);
+        if (null == query) {
+            return List.of();
+        }
+        return query
+                .orderBy(TAGGED_ENTITY)
+                .limit(limit)
                 .fetch();
-        result.forEach(record -> effectiveTagsHelper(group, record.get(field("child"), String.class)));
-        if (group.contains(tag)) {
-            return;
+    }
+
+    @Override
+    public int count(String owner, RetrievalOperator operator, ImmutableList<String> tags) {
+        SelectHavingConditionStep<Record2<Integer, String>> query = retrievalQuery(owner, operator, tags, null);
+        if (null == query) {
+            return 0;
         }
-        group.add(tag);
+        return connection.reader().fetchCount(query);
     }
 
-    private Condition getCondition(String owner, RetrievalOperator operator, ImmutableList<TagGroup> groups) {
-        Condition condition = switch (operator) {
-            case UNION -> {
-                condition = DSL.falseCondition();
-                for (TagGroup group : groups) {
-                    condition = condition.or(group.asCondition());
-                }
-                yield condition;
-            }
-            case INTERSECTION -> {
-                condition = DSL.trueCondition();
-                for (TagGroup group : groups) {
-                    condition = condition.and(group.asCondition());
-                }
-                yield condition;
+    @Override
+    public boolean exists(String owner, RetrievalOperator operator, ImmutableList<String> tags) {
+        SelectHavingConditionStep<Record2<Integer, String>> query = retrievalQuery(owner, operator, tags, null);
+        if (null == query) {
+            return false;
+        }
+        return connection.reader().fetchExists(query);
+    }
+
+    @Override
+    public ImmutableList<String> query(String owner, TagQuery query) {
+        Integer ownerId = owners.find(owner);
+        if (null == ownerId) {
+            return ImmutableList.of();
+        }
+        ImmutableMap<String, Integer> roots = tagIds(QueryPlanner.tags(query));
+        Table<Record2<Integer, Integer>> expansion = roots.isEmpty() ? null : expansion(roots);
+        // the number of entities of the owner tagged under each tag, read from the maintained counts,
+        // to estimate the selectivity of each tag
+        Map<Integer, Long> estimates = new HashMap<>();
+        if (null != expansion) {
+            Field<Integer> root = expansion.field(TagExpansion.ROOT, Integer.class);
+            Field<Integer> count = sum(TagCounts.COUNTED).cast(Integer.class);
+            selectWith(expansion, root, count)
+                    .from(TagCounts.TAG_COUNTS)
+                    .join(expansion)
+                    .on(TagCounts.COUNTED_TAG.eq(expansion.field(TagExpansion.TAG, Integer.class)))
+                    .where(TagCounts.COUNTED_OWNER.eq(ownerId))
+                    .groupBy(root)
+                    .fetch()
+                    .forEach(record -> estimates.put(record.get(root), record.get(count).longValue()));
+        }
+        long universe = connection.reader().fetchCount(ENTITIES, ENTITY_OWNER.eq(ownerId));
+        TagQuery plan = new QueryPlanner(tag -> roots.containsKey(tag) ? estimates.getOrDefault(roots.get(tag), 0L) : 0L, universe).plan(query);
+        if (plan instanceof TagQuery.None) {
+            return ImmutableList.of();
+        }
+        return ImmutableList.copyOf(selectWith(expansion, ENTITY_UUID)
+                .from(ENTITIES)
+                .where(ENTITY_OWNER.eq(ownerId))
+                .and(condition(plan, ownerId, roots, expansion))
+                .fetch(ENTITY_UUID));
+    }
+
+    /**
+     * Compile a planned query into a condition on entities.
+     * Each tag becomes a subquery on the tags of the entities, and the operands of each operator are kept in the
+     * order chosen by the planner.
+     * @param plan the planned query.
+     * @param owner the ID of the owner of the entities.
+     * @param roots the IDs of the tags of the query, keyed by name.
+     * @param expansion the expansion of the tags of the query into their tag groups.
+     * @return the condition.
+     */
+    private Condition condition(TagQuery plan, int owner, ImmutableMap<String, Integer> roots, Table<Record2<Integer, Integer>> expansion) {
+        if (plan instanceof TagQuery.Tag tag) {
+            Integer root = roots.get(tag.name());
+            if (null == root) {
+                return falseCondition();
             }
-        };
-        return condition.and(field("owner").eq(owner));
+            return ENTITY_ID.in(select(TAGGED_ENTITY)
+                    .from(ENTITY_TAGS)
+                    .join(expansion)
+                    .on(TAGGED_TAG.eq(expansion.field(TagExpansion.TAG, Integer.class)))
+                    .where(TAGGED_OWNER.eq(owner))
+                    .and(expansion.field(TagExpansion.ROOT, Integer.class).eq(root)));
+        }
+        if (plan instanceof TagQuery.And and) {
+            return and(and.operands().stream().map(operand -> condition(operand, owner, roots, expansion)).toList());
+        }
+        if (plan instanceof TagQuery.Or or) {
+            return or(or.operands().stream().map(operand -> condition(operand, owner, roots, expansion)).toList());
+        }
+        if (plan instanceof TagQuery.Not not) {
+            return not(condition(not.operand(), owner, roots, expansion));
+        }
+        return plan instanceof TagQuery.All ? trueCondition() : falseCondition();
     }
 
-    private ImmutableList<String> allParents(String tag) throws TagDoesNotExistException {
-        ImmutableList<String> parents = tagDAO.getParents(tag);
-        List<String> list = new ArrayList<>();
-        for (String parent : parents) {
-            allParentsHelper(list, parent);
+    private Table<Record2<Integer, Integer>> expansion(ImmutableMap<String, Integer> roots) {
+        return null == hierarchy
+                ? TagExpansion.descendants(EXPANSION, roots.values())
+                : TagExpansion.inline(EXPANSION, effectiveTags(roots));
+    }
+
+    private SelectSelectStep<Record> selectWith(Table<Record2<Integer, Integer>> expansion, SelectFieldOrAsterisk... fields) {
+        if (expansion instanceof CommonTableExpression<Record2<Integer, Integer>> recursive) {
+            return connection.reader().withRecursive(recursive).select(fields);
         }
-        return ImmutableList.copyOf(list);
+        return connection.reader().select(fields);
     }
 
-    private void allParentsHelper(List<String> list, String tag) throws TagDoesNotExistException {
-        if (list.contains(tag)) {
-            return;
+    @Override
+    public void retrieveEach(String owner, RetrievalOperator operator, ImmutableList<String> tags, Consumer<String> consumer) {
+        // retrieved a page at a time, rather than through a lazily fetched cursor, so that a connection is only held
+        // while a page is fetched, and not while the consumer works through the entities
+        Integer after = null;
+        List<Record2<Integer, String>> page;
+        do {
+            page = page(owner, operator, tags, after, STREAM_PAGE_SIZE);
+            for (Record2<Integer, String> entity : page) {
+                consumer.accept(entity.value2());
+                after = entity.value1();
+            }
+        }
+        while (STREAM_PAGE_SIZE == page.size());
+    }
+
+    /**
+     * Build a single query retrieving the entities of an owner by tag.
+     * The root tags are expanded through the hierarchy, joined to the tags of the entities, and grouped by entity,
+     * so that each entity is retrieved once and an intersection matches an entity tagged under every root.
+     * @param owner the owner of the entities.
+     * @param operator the operator to use.
+     * @param tags the tags to retrieve by.
+     * @param after the ID of the entity to retrieve entities after, or null to retrieve from the start.
+     * @return the query of the ID and UUID of each entity, or null if no entity can match, as the owner has no
+     * entities or too few of the tags exist.
+     */
+    private SelectHavingConditionStep<Record2<Integer, String>> retrievalQuery(String owner, RetrievalOperator operator, ImmutableList<String> tags, Integer after) {
+        Integer ownerId = owners.find(owner);
+        ImmutableMap<String, Integer> roots = tagIds(tags);
+        if (null == ownerId || roots.isEmpty()) {
+            return null;
+        }
+        int required = switch (operator) {
+            case UNION -> 1;
+            case INTERSECTION -> ImmutableSet.copyOf(tags).size();
+        };
+        if (roots.size() < required) {
+            // an entity cannot be tagged under a tag which does not exist
+            return null;
         }
-        list.add(tag);
-        ImmutableList<String> parents = tagDAO.getParents(tag);
-        for (String parent : parents) {
-            allParentsHelper(list, parent);
+        Table<Record2<Integer, Integer>> expansion;
+        SelectSelectStep<Record2<Integer, String>> select;
+        if (null == hierarchy) {
+            CommonTableExpression<Record2<Integer, Integer>> recursive = TagExpansion.descendants(EXPANSION, roots.values());
+            expansion = recursive;
+            select = connection.reader().withRecursive(recursive).select(TAGGED_ENTITY, ENTITY_UUID);
+        }
+        else {
+            expansion = TagExpansion.inline(EXPANSION, effectiveTags(roots));
+            select = connection.reader().select(TAGGED_ENTITY, ENTITY_UUID);
+        }
+        return select
+                .from(ENTITY_TAGS)
+                .join(expansion)
+                .on(TAGGED_TAG.eq(expansion.field(TagExpansion.TAG, Integer.class)))
+                .join(ENTITIES)
+                .on(ENTITY_ID.eq(TAGGED_ENTITY))
+                .where(TAGGED_OWNER.eq(ownerId))
+                .and(null == after ? noCondition() : TAGGED_ENTITY.gt(after))
+                .groupBy(TAGGED_ENTITY, ENTITY_UUID)
+                .having(countDistinct(expansion.field(TagExpansion.ROOT, Integer.class)).ge(required));
+    }
+
+    private ImmutableList<TagGroup> effectiveTags(ImmutableMap<String, Integer> roots) {
+        List<TagGroup> groups = new ArrayList<>();
+        roots.forEach((tag, id) -> {
+            List<Integer> group = new ArrayList<>(tagIds(hierarchy.getDescendants(tag)).values());
+            group.add(id);
+            groups.add(new TagGroup(id, ImmutableList.copyOf(group)));
+        });
+        return ImmutableList.copyOf(groups);
+    }
+
+    private ImmutableList<Integer> ancestors(String tag, int id) {
+        if (null != hierarchy) {
+            return tagIds(hierarchy.getAncestors(tag)).values().asList();
         }
+        CommonTableExpression<Record2<Integer, Integer>> expansion = TagExpansion.ancestors(EXPANSION, List.of(id));
+        Field<Integer> ancestor = expansion.field(TagExpansion.TAG, Integer.class);
+        return ImmutableList.copyOf(connection.reader()
+                .withRecursive(expansion)
+                .select(ancestor)
+                .from(expansion)
+                .where(ancestor.ne(id))
+                .fetch(ancestor));
     }
 
     @Override
     public void addTag(String owner, String uuid, String tag) throws EntityDoesNotExistException, TagDoesNotExistException, EntityNotOwnedException, TagAlreadyOnEntityException {
-        if (!owns(owner, uuid)) {
-            throw new EntityNotOwnedException(owner, uuid);
+        Integer tagId = tagDAO.id(tag);
+        ImmutableList<Integer> parents = null == tagId ? ImmutableList.of() : ancestors(tag, tagId);
+        Integer ownerId = owners.find(owner);
+        TaggingOutcome outcome = connection.context().transactionResult(configuration ->
+                addTag(DSL.using(configuration), ownerId, uuid, tagId, parents)
+        );
+        switch (outcome) {
+            case ENTITY_DOES_NOT_EXIST -> throw new EntityDoesNotExistException(uuid);
+            case ENTITY_NOT_OWNED -> throw new EntityNotOwnedException(owner, uuid);
+            case TAG_DOES_NOT_EXIST -> throw new TagDoesNotExistException(tag);
+            case TAG_ALREADY_ON_ENTITY -> throw new TagAlreadyOnEntityException(uuid, tag);
         }
-        if (!tagDAO.exists(tag)) {
-            throw new TagDoesNotExistException(tag);
+    }
+
+    /**
+     * Add a tag to an entity within a transaction.
+     * The tag is inserted unless already present, and any of its parents on the entity are removed,
+     * as the tag is more specific than them.
+     * @param context the context of the transaction.
+     * @param owner the ID of the owner of the entity, or null if the owner has no entities.
+     * @param uuid the UUID of the entity.
+     * @param tag the ID of the tag, or null if the tag does not exist.
+     * @param parents the IDs of all tags the tag inherits.
+     * @return the outcome.
+     */
+    private TaggingOutcome addTag(DSLContext context, Integer owner, String uuid, Integer tag, ImmutableList<Integer> parents) {
+        Record2<Integer, Integer> entity = locked(context
+                .select(ENTITY_ID, ENTITY_OWNER)
+                .from(ENTITIES)
+                .where(ENTITY_UUID.eq(uuid)))
+                .fetchOne();
+        if (null == entity) {
+            return TaggingOutcome.ENTITY_DOES_NOT_EXIST;
         }
-        if (getTags(owner, uuid).contains(tag)) {
-            throw new TagAlreadyOnEntityException(uuid, tag);
+        if (!entity.value2().equals(owner)) {
+            return TaggingOutcome.ENTITY_NOT_OWNED;
         }
-        ImmutableList<String> parents = allParents(tag);
-        ImmutableList<String> currentTags = getTags(owner, uuid);
-        List<String> toRemove = currentTags.stream().filter(parents::contains).toList();
-        for (String t : toRemove) {
-            removeTag(owner, uuid, t);
+        if (null == tag) {
+            return TaggingOutcome.TAG_DOES_NOT_EXIST;
         }
-        connection.context()
+        int entityId = entity.value1();
+        int inserted = context
                 .insertInto(
-                        table("entity_tags"),
-                        field("entity"),
-                        field("tag"),
-                        field("owner")
+                        ENTITY_TAGS,
+                        ENTITY_COLUMN,
+                        TAG_COLUMN,
+                        OWNER_COLUMN
                 )
                 .values(
-                        uuid,
+                        entityId,
                         tag,
                         owner
                 )
+                .onConflictDoNothing()
                 .execute();
+        if (0 == inserted) {
+            return TaggingOutcome.TAG_ALREADY_ON_ENTITY;
+        }
+        Map<Integer, Integer> deltas = new HashMap<>();
+        deltas.put(tag, 1);
+        if (!parents.isEmpty()) {
+            context.deleteFrom(ENTITY_TAGS)
+                    .where(TAGGED_ENTITY.eq(entityId).and(TAGGED_TAG.in(parents)))
+                    .returningResult(TAG_COLUMN)
+                    .fetch(TAG_COLUMN)
+                    .forEach(parent -> deltas.put(parent, -1));
+        }
+        TagCounts.adjust(context, owner, deltas);
+        return TaggingOutcome.ADDED;
     }
 
     @Override
-    public void removeTag(String owner, String uuid, String tag) throws EntityDoesNotExistException, TagDoesNotExistException, EntityNotOwnedException {
-        if (!owns(owner, uuid)) {
-            throw new EntityNotOwnedException(owner, uuid);
+    public ImmutableList<TaggingResult> addTags(String owner, Map<String, List<String>> tags) {
+        // validate each distinct tag, and find what it inherits, only once
+        Map<String, Integer> ids = new HashMap<>();
+        Map<Integer, ImmutableList<Integer>> parents = new HashMap<>();
+        tags.values().stream()
+                .flatMap(List::stream)
+                .distinct()
+                .forEach(tag -> {
+                    Integer id = tagDAO.id(tag);
+                    if (null != id) {
+                        ids.put(tag, id);
+                        parents.put(id, ancestors(tag, id));
+                    }
+                });
+        Integer ownerId = owners.find(owner);
+        return connection.context().transactionResult(configuration ->
+                addTags(DSL.using(configuration), ownerId, tags, ids, parents)
+        );
+    }
+
+    /**
+     * Add many tags to many entities within a transaction.
+     * The ownership and current tags of every entity are read up front, the additions are applied in memory,
+     * and only the net changes are written back in two batches. The counts are adjusted by the rows each statement
+     * of the batches actually affected, so that a concurrent change to the same tags is never counted twice.
+     * @param context the context of the transaction.
+     * @param owner the ID of the owner of the entities, or null if the owner has no entities.
+     * @param tags the tags to add, keyed by the UUID of the entity.
+     * @param ids the ID of each existing tag, keyed by name.
+     * @param parents the IDs of all tags each existing tag inherits, keyed by the ID of the tag.
+     * @return the result of each addition, in order.
+     */
+    private ImmutableList<TaggingResult> addTags(DSLContext context, Integer owner, Map<String, List<String>> tags, Map<String, Integer> ids, Map<Integer, ImmutableList<Integer>> parents) {
+        Map<String, Integer> entities = new HashMap<>();
+        Map<String, Integer> entityOwners = new HashMap<>();
+        Map<Integer, Set<Integer>> initial = new HashMap<>();
+        for (List<String> partition : partition(tags.keySet())) {
+            List<Integer> owned = new ArrayList<>();
+            locked(context.select(ENTITY_UUID, ENTITY_ID, ENTITY_OWNER)
+                    .from(ENTITIES)
+                    .where(uuidIn(partition))
+                    .orderBy(ENTITY_ID))
+                    .fetch()
+                    .forEach(record -> {
+                        entities.put(record.value1(), record.value2());
+                        entityOwners.put(record.value1(), record.value3());
+                        if (record.value3().equals(owner)) {
+                            owned.add(record.value2());
+                        }
+                    });
+            if (owned.isEmpty()) {
+                continue;
+            }
+            context.select(TAGGED_ENTITY, TAGGED_TAG)
+                    .from(ENTITY_TAGS)
+                    .where(TAGGED_ENTITY.in(owned))
+                    .fetch()
+                    .forEach(record -> initial.computeIfAbsent(record.value1(), key -> new HashSet<>()).add(record.value2()));
+        }
+
+        ImmutableList.Builder<TaggingResult> results = ImmutableList.builder();
+        Map<Integer, Set<Integer>> current = new HashMap<>();
+        tags.forEach((uuid, entityTags) -> {
+            for (String tag : entityTags) {
+                TaggingOutcome outcome;
+                Integer actual = entityOwners.get(uuid);
+                Integer tagId = ids.get(tag);
+                if (null == actual) {
+                    outcome = TaggingOutcome.ENTITY_DOES_NOT_EXIST;
+                }
+                else if (!actual.equals(owner)) {
+                    outcome = TaggingOutcome.ENTITY_NOT_OWNED;
+                }
+                else if (null == tagId) {
+                    outcome = TaggingOutcome.TAG_DOES_NOT_EXIST;
+                }
+                else {
+                    Set<Integer> entityCurrent = current.computeIfAbsent(entities.get(uuid), key -> new HashSet<>(initial.getOrDefault(key, Set.of())));
+                    if (entityCurrent.contains(tagId)) {
+                        outcome = TaggingOutcome.TAG_ALREADY_ON_ENTITY;
+                    }
+                    else {
+                        parents.get(tagId).forEach(entityCurrent::remove);
+                        entityCurrent.add(tagId);
+                        outcome = TaggingOutcome.ADDED;
+                    }
+                }
+                results.add(new TaggingResult(uuid, tag, outcome));
+            }
+        });
+
+        BatchBindStep deletes = context.batch(context
+                .deleteFrom(ENTITY_TAGS)
+                .where(TAGGED_ENTITY.eq((Integer) null).and(TAGGED_TAG.eq((Integer) null))));
+        BatchBindStep inserts = context.batch(context
+                .insertInto(ENTITY_TAGS, ENTITY_COLUMN, TAG_COLUMN, OWNER_COLUMN)
+                .values((Integer) null, null, null)
+                .onConflictDoNothing());
+        List<Integer> deleted = new ArrayList<>();
+        List<Integer> inserted = new ArrayList<>();
+        for (Map.Entry<Integer, Set<Integer>> entry : current.entrySet()) {
+            Integer entity = entry.getKey();
+            Set<Integer> before = initial.getOrDefault(entity, Set.of());
+            Set<Integer> after = entry.getValue();
+            for (Integer tag : Sets.difference(before, after)) {
+                deletes.bind(entity, tag);
+                deleted.add(tag);
+            }
+            for (Integer tag : Sets.difference(after, before)) {
+                inserts.bind(entity, tag, owner);
+                inserted.add(tag);
+            }
+        }
+        Map<Integer, Integer> deltas = new HashMap<>();
+        if (!deleted.isEmpty()) {
+            countAffected(deletes.execute(), deleted, -1, deltas);
+        }
+        if (!inserted.isEmpty()) {
+            countAffected(inserts.execute(), inserted, 1, deltas);
+        }
+        if (!deltas.isEmpty()) {
+            TagCounts.adjust(context, owner, deltas);
         }
-        if (!tagDAO.exists(tag)) {
+        return results.build();
+    }
+
+    /**
+     * Count the tags a batch actually added or removed.
+     * @param affected the number of rows affected by each statement of the batch.
+     * @param tags the tag bound to each statement of the batch.
+     * @param delta the change to count for each affected row.
+     * @param deltas the changes to count into.
+     */
+    private static void countAffected(int[] affected, List<Integer> tags, int delta, Map<Integer, Integer> deltas) {
+        for (int i = 0; i < affected.length; i++) {
+            if (0 < affected[i]) {
+                deltas.merge(tags.get(i), delta, Integer::sum);
+            }
+        }
+    }
+
+    /**
+     * Lock the entities read by a query until the end of the transaction, on PostgreSQL.
+     * SQLite orders every write through a single connection, so only PostgreSQL, which accepts concurrent writers,
+     * needs other changes to the entities held off while the transaction decides what to write.
+     * @param select the query, ordered by entity ID, so that transactions always lock entities in the same order.
+     * @return the query.
+     */
+    private <R extends Record> ResultQuery<R> locked(SelectForUpdateStep<R> select) {
+        return postgres ? select.forUpdate() : select;
+    }
+
+    @Override
+    public void removeTag(String owner, String uuid, String tag) throws EntityDoesNotExistException, TagDoesNotExistException, EntityNotOwnedException {
+        Integer tagId = tagDAO.id(tag);
+        if (null == tagId) {
             throw new TagDoesNotExistException(tag);
         }
-        int result = connection.context()
-                .deleteFrom(table("entity_tags"))
-                .where(field("tag").eq(tag).and(field("entity").eq(uuid)))
-                .execute();
+        Integer ownerId = owners.find(owner);
+        if (null == ownerId) {
+            explainFailure(owner, uuid);
+        }
+        int result = connection.context().transactionResult(configuration -> {
+            DSLContext context = DSL.using(configuration);
+            int removed = context
+                    .deleteFrom(ENTITY_TAGS)
+                    .where(TAGGED_ENTITY.in(select(ENTITY_ID).from(ENTITIES).where(ENTITY_UUID.eq(uuid))))
+                    .and(TAGGED_TAG.eq(tagId))
+                    .and(TAGGED_OWNER.eq(ownerId))
+                    .execute();
+            TagCounts.adjust(context, ownerId, tagId, -removed);
+            return removed;
+        });
         if (0 == result) {
-            throw new EntityDoesNotExistException(uuid);
+            explainFailure(owner, uuid);
         }
     }
 
     @Override
     public ImmutableList<String> getTags(String owner, String uuid) throws EntityDoesNotExistException, EntityNotOwnedException {
-        if (!owns(owner, uuid)) {
+        // a single query both checks ownership and fetches the tags, which are null for an untagged entity
+        Result<Record2<Integer, Integer>> result = connection.reader()
+                .select(ENTITY_OWNER, TAGGED_TAG)
+                .from(ENTITIES)
+                .leftJoin(ENTITY_TAGS)
+                .on(TAGGED_ENTITY.eq(ENTITY_ID))
+                .where(ENTITY_UUID.eq(uuid))
+                .fetch();
+        if (result.isEmpty()) {
+            throw new EntityDoesNotExistException(uuid);
+        }
+        if (!result.get(0).value1().equals(owners.find(owner))) {
             throw new EntityNotOwnedException(owner, uuid);
         }
-        Result<Record> result = connection.context()
-                .selectFrom(table("entity_tags"))
-                .where(field("entity").eq(uuid))
-                .fetch();
         List<String> tags = new ArrayList<>();
-        result.forEach(record -> tags.add(record.get(field("tag"), String.class)));
+        result.forEach(record -> {
+            // the tags of entities are left behind by deleted tags, which no longer have a name
+            String name = null == record.value2() ? null : tagDAO.name(record.value2());
+            if (null != name) {
+                tags.add(name);
+            }
+        });
         return ImmutableList.copyOf(tags);
     }
+
+    @Override
+    public ImmutableSetMultimap<String, String> getAllTags(String owner) {
+        ImmutableSetMultimap.Builder<String, String> builder = ImmutableSetMultimap.builder();
+        Integer ownerId = owners.find(owner);
+        if (null == ownerId) {
+            return builder.build();
+        }
+        connection.reader()
+                .select(ENTITY_UUID, TAGGED_TAG)
+                .from(ENTITY_TAGS)
+                .join(ENTITIES)
+                .on(ENTITY_ID.eq(TAGGED_ENTITY))
+                .where(TAGGED_OWNER.eq(ownerId))
+                .fetch()
+                .forEach(record -> {
+                    String name = tagDAO.name(record.value2());
+                    if (null != name) {
+                        builder.put(record.value1(), name);
+                    }
+                });
+        return builder.build();
+    }
 }
@@ -1,41 +1,119 @@
 package org.amoseman.tagsystem.backend.dao.sql;
 
+import com.google.common.collect.ImmutableBiMap;
 import com.google.common.collect.ImmutableList;
 import org.amoseman.tagsystem.backend.exception.tag.*;
 import org.amoseman.tagsystem.backend.dao.TagDAO;
+import org.amoseman.tagsystem.backend.index.RetrievalCache;
+import org.amoseman.tagsystem.backend.index.TagHierarchyIndex;
+import org.amoseman.tagsystem.backend.pojo.TagSnapshot;
+import org.jooq.CommonTableExpression;
 import org.jooq.Field;
 import org.jooq.Record;
-import org.jooq.Result;
+import org.jooq.Record2;
 import org.jooq.Table;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
 
 import static org.jooq.impl.DSL.field;
+import static org.jooq.impl.DSL.name;
 import static org.jooq.impl.DSL.table;
 
 public class SQLTagDAO implements TagDAO {
-    private static final Table<Record> TAGS_TABLE = table("tags");
-    private static final Field<Object> NAME_FIELD = field("name");
+    private static final Table<Record> TAGS_TABLE = table(name("tags"));
+    private static final Field<Integer> ID_FIELD = field(name("id"), Integer.class);
+    private static final Field<String> NAME_FIELD = field(name("name"), String.class);
+    private static final Table<Record> TAG_CHILDREN = table(name("tag_children"));
+    private static final Field<Integer> PARENT_FIELD = field(name("parent"), Integer.class);
+    private static final Field<Integer> CHILD_FIELD = field(name("child"), Integer.class);
     private final DatabaseConnection connection;
+    private final TagHierarchyIndex hierarchy;
+    private final RetrievalCache retrievalCache;
+    private final List<Consumer<String>> deletionListeners;
+    /**
+     * Every tag and its ID, replaced as a whole whenever a tag is created or deleted, so that reads never lock or query.
+     */
+    private volatile Dictionary dictionary;
 
-    public SQLTagDAO(DatabaseConnection connection) {
+    /**
+     * Instantiate a SQL tag DAO.
+     * @param connection the connection to the database.
+     * @param hierarchy the tag hierarchy index to load and maintain, or null if the hierarchy is not cached.
+     * @param retrievalCache the retrieval cache to invalidate on changes to the hierarchy, or null if retrievals are not cached.
+     */
+    public SQLTagDAO(DatabaseConnection connection, TagHierarchyIndex hierarchy, RetrievalCache retrievalCache) {
         this.connection = connection;
+        this.hierarchy = hierarchy;
+        this.retrievalCache = retrievalCache;
+        this.deletionListeners = new CopyOnWriteArrayList<>();
+        this.dictionary = new Dictionary(0, loadTags());
+        if (null != hierarchy) {
+            loadHierarchy();
+        }
     }
 
-    public boolean exists(String name) {
-        int result = connection.context()
-                .selectFrom(TAGS_TABLE)
-                .where(NAME_FIELD.eq(name))
+    private void loadHierarchy() {
+        ImmutableBiMap<Integer, String> names = dictionary.ids().inverse();
+        connection.reader()
+                .select(PARENT_FIELD, CHILD_FIELD)
+                .from(TAG_CHILDREN)
+                .fetch()
+                .forEach(record -> hierarchy.addChild(
+                        names.get(record.value1()),
+                        names.get(record.value2())
+                ));
+    }
+
+    private ImmutableBiMap<String, Integer> loadTags() {
+        ImmutableBiMap.Builder<String, Integer> builder = ImmutableBiMap.builder();
+        connection.reader()
+                .select(NAME_FIELD, ID_FIELD)
+                .from(TAGS_TABLE)
+                .orderBy(ID_FIELD)
                 .fetch()
-                .size();
-        return 1 == result;
+                .forEach(record -> builder.put(record.value1(), record.value2()));
+        return builder.build();
+    }
+
+    /**
+     * Get the ID a tag is stored by.
+     * @param name the name of the tag.
+     * @return the ID, or null if the tag does not exist.
+     */
+    Integer id(String name) {
+        return dictionary.ids().get(name);
+    }
+
+    /**
+     * Get the name of a tag from the ID it is stored by.
+     * @param id the ID of the tag.
+     * @return the name, or null if the tag has been deleted.
+     */
+    String name(int id) {
+        return dictionary.ids().inverse().get(id);
+    }
+
+    /**
+     * Listen for deleted tags.
+     * @param listener the listener, called with the name of each tag once it is deleted.
+     */
+    public void onDelete(Consumer<String> listener) {
+        deletionListeners.add(listener);
+    }
+
+    public boolean exists(String name) {
+        return dictionary.ids().containsKey(name);
     }
 
     @Override
-    public void create(String name) throws NameInUseException {
+    public synchronized void create(String name) throws NameInUseException {
+        Integer id;
         try {
-            connection.context()
+            id = connection.context()
                     .insertInto(
                             TAGS_TABLE,
                             NAME_FIELD
@@ -43,111 +121,163 @@ public class SQLTagDAO implements TagDAO {
                     .values(
                             name
                     )
-                    .execute();
+                    .returningResult(ID_FIELD)
+                    .fetchOne(ID_FIELD);
         }
         catch (Exception e) {
             throw new NameInUseException(name);
         }
+        dictionary = new Dictionary(dictionary.version() + 1, ImmutableBiMap.<String, Integer>builder()
+                .putAll(dictionary.ids())
+                .put(name, id)
+                .build());
     }
 
     @Override
-    public void delete(String name) throws TagDoesNotExistException {
-        int result = connection.context()
-                .deleteFrom(table("tags"))
-                .where(field("name").eq(name))
-                .execute();
-        if (0 == result) {
+    public synchronized void delete(String name) throws TagDoesNotExistException {
+        Integer id = id(name);
+        if (null == id) {
             throw new TagDoesNotExistException(name);
         }
         connection.context()
-                .deleteFrom(table("tag_children"))
-                .where(field("parent").eq(name).or(field("child").eq(name)))
+                .deleteFrom(TAGS_TABLE)
+                .where(ID_FIELD.eq(id))
+                .execute();
+        dictionary = new Dictionary(dictionary.version() + 1, dictionary.ids().entrySet().stream()
+                .filter(entry -> !entry.getKey().equals(name))
+                .collect(ImmutableBiMap.toImmutableBiMap(Map.Entry::getKey, Map.Entry::getValue)));
+        connection.context()
+                .deleteFrom(TAG_CHILDREN)
+                .where(PARENT_FIELD.eq(id).or(CHILD_FIELD.eq(id)))
                 .execute();
+        if (null != hierarchy) {
+            hierarchy.remove(name);
+        }
+        if (null != retrievalCache) {
+            retrievalCache.invalidateHierarchy(name);
+        }
+        deletionListeners.forEach(listener -> listener.accept(name));
     }
 
     @Override
     public ImmutableList<String> getChildren(String tag) throws TagDoesNotExistException {
-        Result<Record> result = connection.context()
-                .selectFrom(table("tag_children"))
-                .where(field("parent").eq(tag))
-                .fetch();
-        List<String> children = new ArrayList<>();
-        result.forEach(record -> children.add(record.get(field("child"), String.class)));
-        return ImmutableList.copyOf(children);
-    }
-
-    private boolean isChild(String parent, String target) throws TagDoesNotExistException {
-        ImmutableList<String> children = getChildren(parent);
-        for (String child : children) {
-            if (child.equals(target)) {
-                return true;
-            }
-            if (isChild(child, target)) {
-                return true;
-            }
+        Integer id = id(tag);
+        if (null == id) {
+            return ImmutableList.of();
         }
-        return false;
+        return names(connection.reader()
+                .select(CHILD_FIELD)
+                .from(TAG_CHILDREN)
+                .where(PARENT_FIELD.eq(id))
+                .fetch(CHILD_FIELD));
     }
 
     public ImmutableList<String> getParents(String tag) throws TagDoesNotExistException{
-        if (!exists(tag)) {
+        Integer id = id(tag);
+        if (null == id) {
             throw new TagDoesNotExistException(tag);
         }
-        Result<Record> result = connection.context()
-                .selectFrom(table("tag_children"))
-                .where(field("child").eq(tag))
-                .fetch();
-        List<String> parents = new ArrayList<>();
-        result.forEach(record -> parents.add(record.get(field("parent", String.class))));
-        return ImmutableList.copyOf(parents);
+        return names(connection.reader()
+                .select(PARENT_FIELD)
+                .from(TAG_CHILDREN)
+                .where(CHILD_FIELD.eq(id))
+                .fetch(PARENT_FIELD));
+    }
+
+    private ImmutableList<String> names(List<Integer> ids) {
+        ImmutableBiMap<Integer, String> names = dictionary.ids().inverse();
+        return ids.stream()
+                .map(names::get)
+                .filter(Objects::nonNull)
+                .collect(ImmutableList.toImmutableList());
     }
 
     @Override
-    public void addChild(String parent, String child) throws TagDoesNotExistException, TagInheritanceLoopException, TagIsAlreadyChildException {
-        if (!exists(parent)) {
+    public synchronized void addChild(String parent, String child) throws TagDoesNotExistException, TagInheritanceLoopException, TagIsAlreadyChildException {
+        Integer parentId = id(parent);
+        if (null == parentId) {
             throw new TagDoesNotExistException(parent);
         }
-        if (!exists(child)) {
+        Integer childId = id(child);
+        if (null == childId) {
             throw new TagDoesNotExistException(child);
         }
-        if (isChild(child, parent)) {
+        if (createsLoop(parent, parentId, child, childId)) {
             throw new TagInheritanceLoopException();
         }
         try {
             connection.context()
-                    .insertInto(table("tag_children"), field("parent"), field("child"))
-                    .values(parent, child)
+                    .insertInto(TAG_CHILDREN, PARENT_FIELD, CHILD_FIELD)
+                    .values(parentId, childId)
                     .execute();
         }
         catch (Exception e) {
             throw new TagIsAlreadyChildException(child, parent);
         }
+        if (null != hierarchy) {
+            hierarchy.addChild(parent, child);
+        }
+        if (null != retrievalCache) {
+            retrievalCache.invalidateHierarchy(parent);
+        }
+    }
+
+    private boolean createsLoop(String parent, int parentId, String child, int childId) {
+        if (null != hierarchy) {
+            return hierarchy.createsLoop(parent, child);
+        }
+        CommonTableExpression<Record2<Integer, Integer>> descendants = TagExpansion.descendants("descendants", List.of(childId));
+        return connection.reader().fetchExists(
+                connection.reader()
+                        .withRecursive(descendants)
+                        .selectFrom(descendants)
+                        .where(descendants.field(TagExpansion.TAG, Integer.class).eq(parentId))
+        );
     }
 
     @Override
-    public void removeChild(String parent, String child) throws TagDoesNotExistException, TagIsNotChildException {
-        if (!exists(parent)) {
+    public synchronized void removeChild(String parent, String child) throws TagDoesNotExistException, TagIsNotChildException {
+        Integer parentId = id(parent);
+        if (null == parentId) {
             throw new TagDoesNotExistException(parent);
         }
-        if (!exists(child)) {
+        Integer childId = id(child);
+        if (null == childId) {
             throw new TagDoesNotExistException(child);
         }
         int result = connection.context()
-                .deleteFrom(table("tag_children"))
-                .where(field("parent").eq(parent).and(field("child").eq(child)))
+                .deleteFrom(TAG_CHILDREN)
+                .where(PARENT_FIELD.eq(parentId).and(CHILD_FIELD.eq(childId)))
                 .execute();
         if (0 == result){
             throw new TagIsNotChildException(parent, child);
         }
+        if (null != hierarchy) {
+            hierarchy.removeChild(parent, child);
+        }
+        if (null != retrievalCache) {
+            retrievalCache.invalidateHierarchy(parent);
+        }
     }
 
     @Override
     public ImmutableList<String> listAll() {
-        Result<Record> result = connection.context()
-                .selectFrom(table("tags"))
-                .fetch();
-        List<String> tags = new ArrayList<>();
-        result.forEach(record -> tags.add(record.get(field("name"), String.class)));
-        return ImmutableList.copyOf(tags);
+        return dictionary.snapshot().tags().asList();
+    }
+
+    @Override
+    public TagSnapshot snapshot() {
+        return dictionary.snapshot();
+    }
+
+    /**
+     * The tags, and the IDs they are stored by, at a version.
+     * @param version the version, incremented on every change.
+     * @param ids the ID of each tag, keyed by name.
+     */
+    private record Dictionary(long version, ImmutableBiMap<String, Integer> ids) {
+        TagSnapshot snapshot() {
+            return new TagSnapshot(version, ids.keySet());
+        }
     }
 }
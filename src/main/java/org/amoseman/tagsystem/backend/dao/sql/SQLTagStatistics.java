@@ -0,0 +1,68 @@
+package org.amoseman.tagsystem.backend.dao.sql;
+
+import org.amoseman.tagsystem.backend.dao.TagStatistics;
+import org.jooq.Field;
+import org.jooq.Record;
+import org.jooq.Table;
+
+import static org.jooq.impl.DSL.field;
+import static org.jooq.impl.DSL.name;
+import static org.jooq.impl.DSL.sum;
+import static org.jooq.impl.DSL.table;
+
+/**
+ * Reads tag statistics from the counts maintained by the SQL entity DAO.
+ * The counts are stored by the IDs of owners and tags, so each statistic joins them to their names.
+ */
+public class SQLTagStatistics implements TagStatistics {
+    private static final Table<Record> TAGS = table(name("tags"));
+    private static final Field<Integer> TAG_ID = field(name("tags", "id"), Integer.class);
+    private static final Field<String> TAG_NAME = field(name("tags", "name"), String.class);
+    private final DatabaseConnection connection;
+
+    /**
+     * Instantiate SQL tag statistics.
+     * @param connection the connection to the database.
+     */
+    public SQLTagStatistics(DatabaseConnection connection) {
+        this.connection = connection;
+    }
+
+    @Override
+    public long count(String tag) {
+        Long count = connection.reader()
+                .select(sum(TagCounts.COUNTED).cast(Long.class))
+                .from(TagCounts.TAG_COUNTS)
+                .join(TAGS)
+                .on(TAG_ID.eq(TagCounts.COUNTED_TAG))
+                .where(TAG_NAME.eq(tag))
+                .fetchOne(0, Long.class);
+        return null == count ? 0 : count;
+    }
+
+    @Override
+    public long count(String owner, String tag) {
+        Integer count = connection.reader()
+                .select(TagCounts.COUNTED)
+                .from(TagCounts.TAG_COUNTS)
+                .join(TAGS)
+                .on(TAG_ID.eq(TagCounts.COUNTED_TAG))
+                .join(Owners.OWNERS)
+                .on(Owners.ID.eq(TagCounts.COUNTED_OWNER))
+                .where(Owners.NAME.eq(owner).and(TAG_NAME.eq(tag)))
+                .fetchOne(TagCounts.COUNTED);
+        return null == count ? 0 : count;
+    }
+
+    @Override
+    public long owners(String tag) {
+        return connection.reader().fetchCount(
+                connection.reader()
+                        .select(TagCounts.COUNTED_OWNER)
+                        .from(TagCounts.TAG_COUNTS)
+                        .join(TAGS)
+                        .on(TAG_ID.eq(TagCounts.COUNTED_TAG))
+                        .where(TAG_NAME.eq(tag).and(TagCounts.COUNTED.gt(0)))
+        );
+    }
+}
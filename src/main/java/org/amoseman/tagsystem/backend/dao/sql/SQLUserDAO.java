@@ -1,74 +1,110 @@
 package org.amoseman.tagsystem.backend.dao.sql;
 
-import org.amoseman.tagsystem.backend.authentication.Hasher;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+import org.amoseman.tagsystem.backend.authentication.AuthenticationCache;
+import org.amoseman.tagsystem.backend.authentication.HashingExecutor;
 import org.amoseman.tagsystem.backend.authentication.Roles;
 import org.amoseman.tagsystem.backend.authentication.User;
+import org.amoseman.tagsystem.backend.dao.EntityDAO;
 import org.amoseman.tagsystem.backend.dao.UserDAO;
 import org.amoseman.tagsystem.backend.exception.user.InvalidRoleException;
 import org.amoseman.tagsystem.backend.exception.user.UserDoesNotExistException;
 import org.amoseman.tagsystem.backend.exception.user.UsernameAlreadyInUseException;
+import org.amoseman.tagsystem.backend.pojo.UserCredentials;
 import org.jooq.Record;
-import org.jooq.Result;
 
-import java.util.*;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.jooq.impl.DSL.field;
 import static org.jooq.impl.DSL.table;
 
 public class SQLUserDAO implements UserDAO {
+    private static final int CREDENTIALS_CACHE_SIZE = 1_000;
+    /**
+     * How long credentials are cached for, as a backstop should an invalidation ever be missed.
+     */
+    private static final Duration CREDENTIALS_TTL = Duration.ofMinutes(5);
     private final DatabaseConnection connection;
-    private final Hasher hasher;
+    private final HashingExecutor hasher;
+    private final EntityDAO entityDAO;
+    private final AuthenticationCache authenticationCache;
+    private final Cache<String, UserCredentials> credentials;
+    private final AtomicLong invalidations;
 
-    public SQLUserDAO(DatabaseConnection connection, Hasher hasher) {
+    public SQLUserDAO(DatabaseConnection connection, HashingExecutor hasher, EntityDAO entityDAO, AuthenticationCache authenticationCache) {
         this.connection = connection;
         this.hasher = hasher;
+        this.entityDAO = entityDAO;
+        this.authenticationCache = authenticationCache;
+        this.credentials = CacheBuilder.newBuilder()
+                .maximumSize(CREDENTIALS_CACHE_SIZE)
+                .expireAfterWrite(CREDENTIALS_TTL)
+                .build();
+        this.invalidations = new AtomicLong();
     }
 
-    private Record getRecord(String username) {
-        Result<Record> result = connection.context()
+    private void invalidate(String username) {
+        invalidations.incrementAndGet();
+        credentials.invalidate(username);
+        authenticationCache.invalidate(username);
+    }
+
+    private UserCredentials load(String username) throws UserDoesNotExistException {
+        Record record = connection.reader()
                 .selectFrom(table("users"))
                 .where(field("username").eq(username))
-                .fetch();
-        if (result.isEmpty()) {
-            return null;
+                .fetchOne();
+        if (null == record) {
+            throw new UserDoesNotExistException(username);
         }
-        return result.get(0);
+        return new UserCredentials(
+                record.get(field("username"), String.class),
+                record.get(field("password"), String.class),
+                Base64.getDecoder().decode(record.get(field("salt"), String.class)),
+                ImmutableSet.copyOf(record.get(field("role"), String.class).split(","))
+        );
     }
 
     @Override
-    public User getUser(String username) throws UserDoesNotExistException {
-        Record record = getRecord(username);
-        if (null == record) {
-            throw new UserDoesNotExistException(username);
+    public UserCredentials getCredentials(String username) throws UserDoesNotExistException {
+        UserCredentials cached = credentials.getIfPresent(username);
+        if (null != cached) {
+            return cached;
+        }
+        // stamped as the authentication cache is, as invalidating does not stop a load already under way from
+        // caching what it read before the user was changed
+        long stamp = invalidations.get();
+        UserCredentials loaded = load(username);
+        credentials.put(username, loaded);
+        if (stamp != invalidations.get()) {
+            credentials.invalidate(username);
         }
-        String usernameString = record.get(field("username"), String.class);
-        String[] rolesString = record.get(field("role"), String.class).split(",");
-        Set<String> roles = new HashSet<>(List.of(rolesString));
-        return new User(usernameString, roles);
+        return loaded;
+    }
+
+    @Override
+    public User getUser(String username) throws UserDoesNotExistException {
+        return getCredentials(username).user();
     }
 
     @Override
     public String getPassword(String username) throws UserDoesNotExistException {
-        Record record = getRecord(username);
-        if (null == record) {
-            throw new UserDoesNotExistException(username);
-        }
-        return record.get(field("password"), String.class);
+        return getCredentials(username).hash();
     }
 
     @Override
     public byte[] getSalt(String username) throws UserDoesNotExistException {
-        Record record = getRecord(username);
-        if (null == record) {
-            throw new UserDoesNotExistException(username);
-        }
-        String saltString = record.get(field("salt"), String.class);
-        return Base64.getDecoder().decode(saltString);
+        return getCredentials(username).salt();
     }
 
     @Override
     public void addUser(String username, String password) throws UsernameAlreadyInUseException {
         byte[] salt = hasher.salt();
+        // hashed on the bounded pool, as a request thread hashing directly would escape its limits
         String hash = hasher.hash(password, salt);
         try {
             connection.context()
@@ -90,18 +126,8 @@ public class SQLUserDAO implements UserDAO {
         if (0 == result) {
             throw new UserDoesNotExistException(username);
         }
-        deleteUserEntities(username);
-    }
-
-    private void deleteUserEntities(String username) {
-        connection.context()
-                .deleteFrom(table("entities"))
-                .where(field("owner").eq(username))
-                .execute();
-        connection.context()
-                .deleteFrom(table("entity_tags"))
-                .where(field("owner").eq(username))
-                .execute();
+        invalidate(username);
+        entityDAO.removeAll(username);
     }
 
     @Override
@@ -117,5 +143,6 @@ public class SQLUserDAO implements UserDAO {
         if (0 == result) {
             throw new UserDoesNotExistException(username);
         }
+        invalidate(username);
     }
 }
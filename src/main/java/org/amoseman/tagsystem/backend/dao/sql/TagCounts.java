@@ -0,0 +1,67 @@
+package org.amoseman.tagsystem.backend.dao.sql;
+
+import org.jooq.DSLContext;
+import org.jooq.Field;
+import org.jooq.Query;
+import org.jooq.Record;
+import org.jooq.Table;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.jooq.impl.DSL.field;
+import static org.jooq.impl.DSL.name;
+import static org.jooq.impl.DSL.table;
+
+/**
+ * The number of entities of each owner tagged with each tag, by their IDs, kept alongside the tags of the entities.
+ * Every statement which adds or removes tags of entities must adjust the counts within the same transaction.
+ */
+final class TagCounts {
+    static final Table<Record> TAG_COUNTS = table(name("tag_counts"));
+    static final Field<Integer> OWNER = field(name("owner"), Integer.class);
+    static final Field<Integer> TAG = field(name("tag"), Integer.class);
+    static final Field<Integer> COUNT = field(name("entity_count"), Integer.class);
+    static final Field<Integer> COUNTED_OWNER = field(name("tag_counts", "owner"), Integer.class);
+    static final Field<Integer> COUNTED_TAG = field(name("tag_counts", "tag"), Integer.class);
+    static final Field<Integer> COUNTED = field(name("tag_counts", "entity_count"), Integer.class);
+
+    private TagCounts() {
+
+    }
+
+    /**
+     * Adjust the counts of an owner.
+     * @param context the context of the transaction which changed the tags of the entities.
+     * @param owner the ID of the owner.
+     * @param deltas the change in the number of entities tagged with each tag, keyed by the ID of the tag.
+     */
+    static void adjust(DSLContext context, int owner, Map<Integer, Integer> deltas) {
+        List<Query> queries = new ArrayList<>();
+        deltas.forEach((tag, delta) -> {
+            if (0 != delta) {
+                queries.add(context.insertInto(TAG_COUNTS, OWNER, TAG, COUNT)
+                        .values(owner, tag, delta)
+                        .onConflict(OWNER, TAG)
+                        .doUpdate()
+                        // qualified, as PostgreSQL would otherwise also resolve the column against the excluded row
+                        .set(COUNT, COUNTED.plus(delta)));
+            }
+        });
+        if (!queries.isEmpty()) {
+            context.batch(queries).execute();
+        }
+    }
+
+    /**
+     * Adjust the count of a single tag of an owner.
+     * @param context the context of the transaction which changed the tags of the entities.
+     * @param owner the ID of the owner.
+     * @param tag the ID of the tag.
+     * @param delta the change in the number of entities tagged with the tag.
+     */
+    static void adjust(DSLContext context, int owner, int tag, int delta) {
+        adjust(context, owner, Map.of(tag, delta));
+    }
+}
@@ -0,0 +1,86 @@
+package org.amoseman.tagsystem.backend.dao.sql;
+
+import com.google.common.collect.ImmutableList;
+import org.jooq.CommonTableExpression;
+import org.jooq.Record2;
+import org.jooq.Row2;
+import org.jooq.Table;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static org.jooq.impl.DSL.*;
+
+/**
+ * Builds tables of (root, tag) rows of tag IDs, which expand root tags through the tag inheritance hierarchy.
+ * Each root tag is included in its own expansion.
+ */
+public final class TagExpansion {
+    public static final String ROOT = "root";
+    public static final String TAG = "tag";
+
+    private TagExpansion() {
+
+    }
+
+    /**
+     * Build a recursive common table expression expanding each root tag into itself and all of its descendants.
+     * @param name the name of the expression.
+     * @param roots the IDs of the root tags.
+     * @return the expression.
+     */
+    public static CommonTableExpression<Record2<Integer, Integer>> descendants(String name, Collection<Integer> roots) {
+        return walk(name, roots, "parent", "child");
+    }
+
+    /**
+     * Build a recursive common table expression expanding each root tag into itself and all of its ancestors.
+     * @param name the name of the expression.
+     * @param roots the IDs of the root tags.
+     * @return the expression.
+     */
+    public static CommonTableExpression<Record2<Integer, Integer>> ancestors(String name, Collection<Integer> roots) {
+        return walk(name, roots, "child", "parent");
+    }
+
+    /**
+     * Build an inline table from already expanded tag groups.
+     * @param name the name of the table.
+     * @param groups the expanded tag groups.
+     * @return the table.
+     */
+    public static Table<Record2<Integer, Integer>> inline(String name, ImmutableList<TagGroup> groups) {
+        List<Row2<Integer, Integer>> rows = new ArrayList<>();
+        for (TagGroup group : groups) {
+            for (Integer tag : group.getTags()) {
+                rows.add(row(group.getRoot(), tag));
+            }
+        }
+        return valuesTable(name, rows);
+    }
+
+    private static CommonTableExpression<Record2<Integer, Integer>> walk(String name, Collection<Integer> roots, String from, String to) {
+        List<Row2<Integer, Integer>> rows = new ArrayList<>();
+        for (Integer root : roots) {
+            rows.add(row(root, root));
+        }
+        Table<Record2<Integer, Integer>> seed = valuesTable("seed", rows);
+        return name(name).fields(ROOT, TAG).as(
+                select(seed.field(ROOT, Integer.class), seed.field(TAG, Integer.class))
+                        .from(seed)
+                        .union(
+                                select(field(name(name, ROOT), Integer.class), field(name("tag_children", to), Integer.class))
+                                        .from(table(name(name)))
+                                        .join(table(name("tag_children")))
+                                        .on(field(name("tag_children", from), Integer.class).eq(field(name(name, TAG), Integer.class)))
+                        )
+        );
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Table<Record2<Integer, Integer>> valuesTable(String name, List<Row2<Integer, Integer>> rows) {
+        Row2<Integer, Integer>[] array = rows.toArray(new Row2[0]);
+        return values(array).as(name, ROOT, TAG);
+    }
+}
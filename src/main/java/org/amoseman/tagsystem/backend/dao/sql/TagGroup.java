@@ -1,43 +1,38 @@
 package org.amoseman.tagsystem.backend.dao.sql;
 
 import com.google.common.collect.ImmutableList;
-import org.jooq.Condition;
-import org.jooq.impl.DSL;
-
-import static org.jooq.impl.DSL.field;
 
 /**
- * Represents a group of tags.
+ * Represents a group of tags, by their IDs.
  * They are all grouped by a parent tag with they inherit.
  */
 public class TagGroup {
-    private final ImmutableList<String> tags;
+    private final int root;
+    private final ImmutableList<Integer> tags;
 
     /**
      * Instantiate a new tag group.
+     * @param root the parent tag of the group.
      * @param tags the tags in the group.
      */
-    public TagGroup(final ImmutableList<String> tags) {
+    public TagGroup(final int root, final ImmutableList<Integer> tags) {
+        this.root = root;
         this.tags = tags;
     }
 
     /**
-     * Get the tags within the group.
-     * @return the tags within the group.
+     * Get the parent tag of the group.
+     * @return the parent tag of the group.
      */
-    public ImmutableList<String> getTags() {
-        return tags;
+    public int getRoot() {
+        return root;
     }
 
     /**
-     * Convert the tag group into a jooq condition for use in entity retrieval.
-     * @return the corresponding condition.
+     * Get the tags within the group.
+     * @return the tags within the group.
      */
-    public Condition asCondition() {
-        Condition condition = DSL.falseCondition();
-        for (String tag : tags) {
-            condition = condition.or(field("tag").eq(tag));
-        }
-        return condition;
+    public ImmutableList<Integer> getTags() {
+        return tags;
     }
 }
@@ -0,0 +1,43 @@
+package org.amoseman.tagsystem.backend.dao.sql;
+
+import com.google.common.collect.ImmutableList;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.UUID;
+
+/**
+ * Generates random (version 4) UUIDs in bulk.
+ * Unlike UUID.randomUUID(), which draws from the shared SecureRandom once per UUID, the random bytes of a whole
+ * batch are drawn in a single call.
+ */
+public final class UUIDGenerator {
+    private static final int UUID_BYTES = 16;
+    private final SecureRandom random;
+
+    /**
+     * Instantiate a UUID generator.
+     */
+    public UUIDGenerator() {
+        this.random = new SecureRandom();
+    }
+
+    /**
+     * Generate random UUIDs.
+     * @param count the number of UUIDs to generate.
+     * @return the UUIDs, as strings.
+     */
+    public ImmutableList<String> generate(int count) {
+        byte[] bytes = new byte[count * UUID_BYTES];
+        random.nextBytes(bytes);
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        ImmutableList.Builder<String> builder = ImmutableList.builderWithExpectedSize(count);
+        for (int i = 0; i < count; i++) {
+            // set the version to 4, and the variant to IETF, as UUID.randomUUID() does
+            long most = (buffer.getLong() & 0xffffffffffff0fffL) | 0x0000000000004000L;
+            long least = (buffer.getLong() & 0x3fffffffffffffffL) | 0x8000000000000000L;
+            builder.add(new UUID(most, least).toString());
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,7 @@
+package org.amoseman.tagsystem.backend.exception.query;
+
+public class InvalidQueryException extends Exception {
+    public InvalidQueryException(String query, String reason) {
+        super(String.format("Invalid query %s: %s", query, reason));
+    }
+}
@@ -0,0 +1,564 @@
+package org.amoseman.tagsystem.backend.index;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+import org.amoseman.tagsystem.backend.dao.EntityDAO;
+import org.amoseman.tagsystem.backend.dao.PageCursor;
+import org.amoseman.tagsystem.backend.dao.RetrievalOperator;
+import org.amoseman.tagsystem.backend.dao.TaggingOutcome;
+import org.amoseman.tagsystem.backend.exception.entity.EntityDoesNotExistException;
+import org.amoseman.tagsystem.backend.exception.entity.EntityNotOwnedException;
+import org.amoseman.tagsystem.backend.exception.entity.TagAlreadyOnEntityException;
+import org.amoseman.tagsystem.backend.exception.tag.TagDoesNotExistException;
+import org.amoseman.tagsystem.backend.pojo.EntityPage;
+import org.amoseman.tagsystem.backend.pojo.TaggingResult;
+import org.amoseman.tagsystem.backend.query.QueryPlanner;
+import org.amoseman.tagsystem.backend.query.TagQuery;
+import org.roaringbitmap.IntIterator;
+import org.roaringbitmap.PeekableIntIterator;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * An entity DAO which answers retrievals from compressed bitmap posting lists.
+ * Each entity of an owner is assigned a dense ordinal, and each tag of an owner has a bitmap of the ordinals of the
+ * entities tagged with it. Pages and streams follow the order of the ordinals, which are never reused, so that a page
+ * or stream in progress never mistakes a new entity for a removed one; the ordinals of removed entities are only
+ * reclaimed when the bitmaps of the owner are next loaded. Writes are passed through to the underlying DAO and mirrored into the bitmaps, one
+ * write of an owner at a time, so that the bitmaps apply them in the same order as the underlying DAO.
+ * The bitmaps of an owner are loaded from the underlying DAO the first time they are needed, and the bitmaps of a
+ * deleted tag are dropped, so that a tag later created under the same name starts without entities.
+ */
+public class BitmapEntityIndex implements EntityDAO {
+    private static final int STREAM_CHUNK_SIZE = 10_000;
+    private final EntityDAO delegate;
+    private final TagHierarchyIndex hierarchy;
+    private final ConcurrentMap<String, OwnerBitmaps> owners;
+    /**
+     * Held while the bitmaps of an owner are loaded, and exclusively while a deleted tag is dropped, so that bitmaps
+     * loaded before the tag was deleted are never missed.
+     */
+    private final ReadWriteLock loading;
+
+    /**
+     * Instantiate a bitmap entity index.
+     * @param delegate the entity DAO to index.
+     * @param hierarchy the cached tag hierarchy, used to expand tags into their tag groups.
+     */
+    public BitmapEntityIndex(EntityDAO delegate, TagHierarchyIndex hierarchy) {
+        Preconditions.checkNotNull(hierarchy, "the bitmap entity index requires the tag hierarchy to be cached");
+        this.delegate = delegate;
+        this.hierarchy = hierarchy;
+        this.owners = new ConcurrentHashMap<>();
+        this.loading = new ReentrantReadWriteLock();
+    }
+
+    private OwnerBitmaps bitmaps(String owner) {
+        OwnerBitmaps bitmaps = owners.get(owner);
+        if (null != bitmaps) {
+            return bitmaps;
+        }
+        loading.readLock().lock();
+        try {
+            return owners.computeIfAbsent(owner, key -> new OwnerBitmaps(delegate.getAllTags(key)));
+        }
+        finally {
+            loading.readLock().unlock();
+        }
+    }
+
+    /**
+     * Drop the bitmaps of a deleted tag.
+     * To be called once the tag is deleted, as the underlying DAO no longer matches entities by the tag, nor by a tag
+     * later created under the same name.
+     * @param tag the tag.
+     */
+    public void clearTag(String tag) {
+        loading.writeLock().lock();
+        try {
+            for (OwnerBitmaps bitmaps : owners.values()) {
+                // a write which added the tag before it was deleted is mirrored before the tag is dropped
+                bitmaps.writes.lock();
+                try {
+                    bitmaps.clearTag(tag);
+                }
+                finally {
+                    bitmaps.writes.unlock();
+                }
+            }
+        }
+        finally {
+            loading.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Get the bitmaps of an owner, holding the lock on their writes.
+     * A write holds the lock from its call to the underlying DAO until it is mirrored into the bitmaps. The bitmaps
+     * are checked to still be those of the owner once locked, as the owner may have been removed while waiting.
+     * @param owner the owner.
+     * @return the bitmaps, to be unlocked once the write is mirrored.
+     */
+    private OwnerBitmaps lockWrites(String owner) {
+        while (true) {
+            OwnerBitmaps bitmaps = bitmaps(owner);
+            bitmaps.writes.lock();
+            if (bitmaps == owners.get(owner)) {
+                return bitmaps;
+            }
+            bitmaps.writes.unlock();
+        }
+    }
+
+    @Override
+    public String create(String owner) {
+        return delegate.create(owner);
+    }
+
+    @Override
+    public ImmutableList<String> create(String owner, int count, List<String> tags) throws TagDoesNotExistException {
+        if (tags.isEmpty()) {
+            return delegate.create(owner, count, tags);
+        }
+        OwnerBitmaps bitmaps = lockWrites(owner);
+        try {
+            ImmutableList<String> uuids = delegate.create(owner, count, tags);
+            Set<String> initial = new LinkedHashSet<>(tags);
+            for (String tag : tags) {
+                initial.removeAll(hierarchy.getAncestors(tag));
+            }
+            for (String tag : initial) {
+                for (String uuid : uuids) {
+                    bitmaps.addTag(uuid, tag, ImmutableList.of());
+                }
+            }
+            return uuids;
+        }
+        finally {
+            bitmaps.writes.unlock();
+        }
+    }
+
+    @Override
+    public void remove(String owner, String uuid) throws EntityDoesNotExistException, EntityNotOwnedException {
+        OwnerBitmaps bitmaps = lockWrites(owner);
+        try {
+            delegate.remove(owner, uuid);
+            bitmaps.remove(uuid);
+        }
+        finally {
+            bitmaps.writes.unlock();
+        }
+    }
+
+    @Override
+    public void removeAll(String owner) {
+        OwnerBitmaps bitmaps = lockWrites(owner);
+        try {
+            delegate.removeAll(owner);
+            owners.remove(owner, bitmaps);
+        }
+        finally {
+            bitmaps.writes.unlock();
+        }
+    }
+
+    @Override
+    public ImmutableList<String> retrieve(String owner, RetrievalOperator operator, ImmutableList<String> tags) {
+        return bitmaps(owner).retrieve(operator, groups(tags));
+    }
+
+    /**
+     * Expand tags into their tag groups.
+     * @param tags the tags.
+     * @return a group for each distinct tag, of the tag and its descendants.
+     */
+    private List<ImmutableList<String>> groups(ImmutableList<String> tags) {
+        List<ImmutableList<String>> groups = new ArrayList<>();
+        for (String root : ImmutableSet.copyOf(tags)) {
+            groups.add(ImmutableList.<String>builder()
+                    .add(root)
+                    .addAll(hierarchy.getDescendants(root))
+                    .build());
+        }
+        return groups;
+    }
+
+    @Override
+    public ImmutableList<String> query(String owner, TagQuery query) {
+        OwnerBitmaps bitmaps = bitmaps(owner);
+        Map<String, ImmutableList<String>> groups = new HashMap<>();
+        for (String root : QueryPlanner.tags(query)) {
+            groups.put(root, groups(ImmutableList.of(root)).get(0));
+        }
+        return bitmaps.query(query, groups).orElseGet(() -> delegate.query(owner, query));
+    }
+
+    @Override
+    public int count(String owner, RetrievalOperator operator, ImmutableList<String> tags) {
+        return bitmaps(owner).count(operator, groups(tags));
+    }
+
+    @Override
+    public boolean exists(String owner, RetrievalOperator operator, ImmutableList<String> tags) {
+        return 0 < count(owner, operator, tags);
+    }
+
+    @Override
+    public EntityPage retrieve(String owner, RetrievalOperator operator, ImmutableList<String> tags, String cursor, int limit) {
+        int after = null == cursor ? -1 : PageCursor.decode(cursor);
+        return bitmaps(owner).page(operator, groups(tags), after, limit);
+    }
+
+    @Override
+    public void retrieveEach(String owner, RetrievalOperator operator, ImmutableList<String> tags, Consumer<String> consumer) {
+        bitmaps(owner).forEach(operator, groups(tags), consumer);
+    }
+
+    @Override
+    public void addTag(String owner, String uuid, String tag) throws EntityDoesNotExistException, TagDoesNotExistException, EntityNotOwnedException, TagAlreadyOnEntityException {
+        OwnerBitmaps bitmaps = lockWrites(owner);
+        try {
+            delegate.addTag(owner, uuid, tag);
+            bitmaps.addTag(uuid, tag, hierarchy.getAncestors(tag));
+        }
+        finally {
+            bitmaps.writes.unlock();
+        }
+    }
+
+    @Override
+    public ImmutableList<TaggingResult> addTags(String owner, Map<String, List<String>> tags) {
+        OwnerBitmaps bitmaps = lockWrites(owner);
+        try {
+            ImmutableList<TaggingResult> results = delegate.addTags(owner, tags);
+            for (TaggingResult result : results) {
+                if (TaggingOutcome.ADDED == result.outcome()) {
+                    bitmaps.addTag(result.entity(), result.tag(), hierarchy.getAncestors(result.tag()));
+                }
+            }
+            return results;
+        }
+        finally {
+            bitmaps.writes.unlock();
+        }
+    }
+
+    @Override
+    public void removeTag(String owner, String uuid, String tag) throws EntityDoesNotExistException, TagDoesNotExistException, EntityNotOwnedException {
+        OwnerBitmaps bitmaps = lockWrites(owner);
+        try {
+            delegate.removeTag(owner, uuid, tag);
+            bitmaps.removeTag(uuid, tag);
+        }
+        finally {
+            bitmaps.writes.unlock();
+        }
+    }
+
+    @Override
+    public ImmutableList<String> getTags(String owner, String uuid) throws EntityDoesNotExistException, EntityNotOwnedException {
+        return delegate.getTags(owner, uuid);
+    }
+
+    @Override
+    public ImmutableSetMultimap<String, String> getAllTags(String owner) {
+        return delegate.getAllTags(owner);
+    }
+
+    /**
+     * The entity ordinals and tag bitmaps of a single owner.
+     */
+    private static class OwnerBitmaps {
+        private final Map<String, Integer> ordinals;
+        private final List<String> uuids;
+        private final Map<String, RoaringBitmap> tags;
+        private final ReadWriteLock lock;
+        /**
+         * Held by each write of the owner across both the underlying DAO and the bitmaps, whereas the read-write lock
+         * is only held while the bitmaps themselves are read or changed.
+         */
+        private final Lock writes;
+
+        private OwnerBitmaps(ImmutableSetMultimap<String, String> entityTags) {
+            this.ordinals = new HashMap<>();
+            this.uuids = new ArrayList<>();
+            this.tags = new HashMap<>();
+            this.lock = new ReentrantReadWriteLock();
+            this.writes = new ReentrantLock();
+            entityTags.forEach((uuid, tag) -> bitmap(tag).add(ordinal(uuid)));
+            tags.values().forEach(RoaringBitmap::runOptimize);
+        }
+
+        private int ordinal(String uuid) {
+            Integer ordinal = ordinals.get(uuid);
+            if (null != ordinal) {
+                return ordinal;
+            }
+            ordinal = uuids.size();
+            uuids.add(uuid);
+            ordinals.put(uuid, ordinal);
+            return ordinal;
+        }
+
+        private RoaringBitmap bitmap(String tag) {
+            return tags.computeIfAbsent(tag, key -> new RoaringBitmap());
+        }
+
+        private void addTag(String uuid, String tag, ImmutableList<String> ancestors) {
+            lock.writeLock().lock();
+            try {
+                int ordinal = ordinal(uuid);
+                for (String ancestor : ancestors) {
+                    RoaringBitmap bitmap = tags.get(ancestor);
+                    if (null != bitmap) {
+                        bitmap.remove(ordinal);
+                    }
+                }
+                bitmap(tag).add(ordinal);
+            }
+            finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        private void removeTag(String uuid, String tag) {
+            lock.writeLock().lock();
+            try {
+                Integer ordinal = ordinals.get(uuid);
+                RoaringBitmap bitmap = tags.get(tag);
+                if (null != ordinal && null != bitmap) {
+                    bitmap.remove(ordinal);
+                }
+            }
+            finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        private void clearTag(String tag) {
+            lock.writeLock().lock();
+            try {
+                tags.remove(tag);
+            }
+            finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        private void remove(String uuid) {
+            lock.writeLock().lock();
+            try {
+                Integer ordinal = ordinals.remove(uuid);
+                if (null == ordinal) {
+                    return;
+                }
+                tags.values().forEach(bitmap -> bitmap.remove(ordinal));
+                uuids.set(ordinal, null);
+            }
+            finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        /**
+         * Match the entities tagged under the given tag groups.
+         * Must be called while holding the lock.
+         * @param operator the operator to combine the groups with.
+         * @param groups the tag groups.
+         * @return a new bitmap of the ordinals of the matching entities.
+         */
+        private RoaringBitmap match(RetrievalOperator operator, List<ImmutableList<String>> groups) {
+            if (groups.isEmpty()) {
+                return new RoaringBitmap();
+            }
+            List<RoaringBitmap> matches = new ArrayList<>();
+            for (ImmutableList<String> group : groups) {
+                RoaringBitmap match = new RoaringBitmap();
+                for (String tag : group) {
+                    RoaringBitmap bitmap = tags.get(tag);
+                    if (null != bitmap) {
+                        match.or(bitmap);
+                    }
+                }
+                matches.add(match);
+            }
+            return switch (operator) {
+                case UNION -> {
+                    RoaringBitmap union = new RoaringBitmap();
+                    matches.forEach(union::or);
+                    yield union;
+                }
+                case INTERSECTION -> {
+                    matches.sort(Comparator.comparingInt(RoaringBitmap::getCardinality));
+                    RoaringBitmap intersection = matches.get(0);
+                    for (int i = 1; i < matches.size() && !intersection.isEmpty(); i++) {
+                        intersection.and(matches.get(i));
+                    }
+                    yield intersection;
+                }
+            };
+        }
+
+        /**
+         * Plan and evaluate a query against the bitmaps.
+         * @param query the query.
+         * @param groups the tag group of each tag of the query.
+         * @return the UUIDs of the matching entities, or nothing if the plan needs every entity of the owner, including
+         * those without tags, which are not indexed.
+         */
+        private Optional<ImmutableList<String>> query(TagQuery query, Map<String, ImmutableList<String>> groups) {
+            lock.readLock().lock();
+            try {
+                Map<String, RoaringBitmap> matches = new HashMap<>();
+                groups.forEach((root, group) -> matches.put(root, match(RetrievalOperator.UNION, List.of(group))));
+                TagQuery plan = new QueryPlanner(tag -> matches.get(tag).getLongCardinality(), ordinals.size()).plan(query);
+                if (QueryPlanner.requiresUniverse(plan)) {
+                    return Optional.empty();
+                }
+                return Optional.of(uuids(evaluate(plan, matches, null)));
+            }
+            finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * Evaluate a plan which does not require every entity.
+         * @param plan the plan.
+         * @param matches the entities tagged under each tag of the plan.
+         * @param within the entities to narrow down, or null for no restriction.
+         * @return a new bitmap of the matching entities within those given.
+         */
+        private RoaringBitmap evaluate(TagQuery plan, Map<String, RoaringBitmap> matches, RoaringBitmap within) {
+            if (plan instanceof TagQuery.Tag tag) {
+                RoaringBitmap match = matches.get(tag.name());
+                return null == within ? match.clone() : RoaringBitmap.and(within, match);
+            }
+            if (plan instanceof TagQuery.And and) {
+                RoaringBitmap result = within;
+                for (TagQuery operand : and.operands()) {
+                    result = evaluate(operand, matches, result);
+                    if (result.isEmpty()) {
+                        break;
+                    }
+                }
+                return result;
+            }
+            if (plan instanceof TagQuery.Or or) {
+                RoaringBitmap result = new RoaringBitmap();
+                for (TagQuery operand : or.operands()) {
+                    result.or(evaluate(operand, matches, within));
+                }
+                return result;
+            }
+            if (plan instanceof TagQuery.Not not) {
+                return RoaringBitmap.andNot(within, evaluate(not.operand(), matches, within));
+            }
+            return plan instanceof TagQuery.All ? within.clone() : new RoaringBitmap();
+        }
+
+        private ImmutableList<String> uuids(RoaringBitmap result) {
+            ImmutableList.Builder<String> builder = ImmutableList.builderWithExpectedSize(result.getCardinality());
+            IntIterator iterator = result.getIntIterator();
+            while (iterator.hasNext()) {
+                builder.add(uuids.get(iterator.next()));
+            }
+            return builder.build();
+        }
+
+        private int count(RetrievalOperator operator, List<ImmutableList<String>> groups) {
+            lock.readLock().lock();
+            try {
+                return match(operator, groups).getCardinality();
+            }
+            finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * Retrieve a page of the entities matching tag groups, in order of ordinal.
+         * @param operator the operator to combine the groups with.
+         * @param groups the tag groups.
+         * @param after the ordinal of the last entity of the previous page, or -1 to retrieve the first page.
+         * @param limit the maximum number of entities to retrieve.
+         * @return the page.
+         */
+        private EntityPage page(RetrievalOperator operator, List<ImmutableList<String>> groups, int after, int limit) {
+            lock.readLock().lock();
+            try {
+                PeekableIntIterator iterator = match(operator, groups).getIntIterator();
+                iterator.advanceIfNeeded(after + 1);
+                List<String> entities = new ArrayList<>(limit);
+                int last = after;
+                while (iterator.hasNext() && entities.size() < limit) {
+                    last = iterator.next();
+                    entities.add(uuids.get(last));
+                }
+                return new EntityPage(entities, iterator.hasNext() ? PageCursor.encode(last) : null);
+            }
+            finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        /**
+         * Pass the entities matching tag groups to a consumer, in order of ordinal.
+         * The entities are matched once, and translated to UUIDs a chunk at a time, so that the result is never
+         * collected as a whole, and the bitmaps are not locked while the consumer runs. An entity removed since it was
+         * matched is skipped.
+         * @param operator the operator to combine the groups with.
+         * @param groups the tag groups.
+         * @param consumer the consumer of the UUIDs of the matching entities.
+         */
+        private void forEach(RetrievalOperator operator, List<ImmutableList<String>> groups, Consumer<String> consumer) {
+            RoaringBitmap match;
+            lock.readLock().lock();
+            try {
+                match = match(operator, groups);
+            }
+            finally {
+                lock.readLock().unlock();
+            }
+            IntIterator iterator = match.getIntIterator();
+            List<String> chunk = new ArrayList<>(Math.min(match.getCardinality(), STREAM_CHUNK_SIZE));
+            while (iterator.hasNext()) {
+                lock.readLock().lock();
+                try {
+                    while (iterator.hasNext() && chunk.size() < STREAM_CHUNK_SIZE) {
+                        String uuid = uuids.get(iterator.next());
+                        if (null != uuid) {
+                            chunk.add(uuid);
+                        }
+                    }
+                }
+                finally {
+                    lock.readLock().unlock();
+                }
+                chunk.forEach(consumer);
+                chunk.clear();
+            }
+        }
+
+        private ImmutableList<String> retrieve(RetrievalOperator operator, List<ImmutableList<String>> groups) {
+            lock.readLock().lock();
+            try {
+                return uuids(match(operator, groups));
+            }
+            finally {
+                lock.readLock().unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package org.amoseman.tagsystem.backend.index;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSetMultimap;
+import org.amoseman.tagsystem.backend.dao.EntityDAO;
+import org.amoseman.tagsystem.backend.dao.RetrievalOperator;
+import org.amoseman.tagsystem.backend.dao.TaggingOutcome;
+import org.amoseman.tagsystem.backend.exception.entity.EntityDoesNotExistException;
+import org.amoseman.tagsystem.backend.exception.entity.EntityNotOwnedException;
+import org.amoseman.tagsystem.backend.exception.entity.TagAlreadyOnEntityException;
+import org.amoseman.tagsystem.backend.exception.tag.TagDoesNotExistException;
+import org.amoseman.tagsystem.backend.pojo.EntityPage;
+import org.amoseman.tagsystem.backend.pojo.TaggingResult;
+import org.amoseman.tagsystem.backend.query.TagQuery;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.function.Consumer;
+
+/**
+ * An entity DAO which answers repeated retrievals from a retrieval cache.
+ * Writes are passed through to the underlying DAO, and then invalidate the cached results they affect.
+ */
+public class CachedEntityDAO implements EntityDAO {
+    private final EntityDAO delegate;
+    private final RetrievalCache cache;
+
+    /**
+     * Instantiate a cached entity DAO.
+     * @param delegate the entity DAO to cache the retrievals of.
+     * @param cache the retrieval cache.
+     */
+    public CachedEntityDAO(EntityDAO delegate, RetrievalCache cache) {
+        this.delegate = delegate;
+        this.cache = cache;
+    }
+
+    @Override
+    public String create(String owner) {
+        // an untagged entity is not matched by any retrieval
+        return delegate.create(owner);
+    }
+
+    @Override
+    public ImmutableList<String> create(String owner, int count, List<String> tags) throws TagDoesNotExistException {
+        ImmutableList<String> uuids = delegate.create(owner, count, tags);
+        for (String tag : ImmutableSet.copyOf(tags)) {
+            cache.invalidate(owner, tag);
+        }
+        return uuids;
+    }
+
+    @Override
+    public void remove(String owner, String uuid) throws EntityDoesNotExistException, EntityNotOwnedException {
+        ImmutableList<String> tags = delegate.getTags(owner, uuid);
+        delegate.remove(owner, uuid);
+        for (String tag : tags) {
+            cache.invalidate(owner, tag);
+        }
+    }
+
+    @Override
+    public void removeAll(String owner) {
+        delegate.removeAll(owner);
+        cache.invalidateOwner(owner);
+    }
+
+    @Override
+    public ImmutableList<String> retrieve(String owner, RetrievalOperator operator, ImmutableList<String> tags) {
+        Optional<ImmutableList<String>> cached = cache.get(owner, operator, tags);
+        if (cached.isPresent()) {
+            return cached.get();
+        }
+        long stamp = cache.stamp(owner);
+        ImmutableList<String> entities = delegate.retrieve(owner, operator, tags);
+        cache.put(owner, operator, tags, entities, stamp);
+        return entities;
+    }
+
+    @Override
+    public EntityPage retrieve(String owner, RetrievalOperator operator, ImmutableList<String> tags, String cursor, int limit) {
+        return delegate.retrieve(owner, operator, tags, cursor, limit);
+    }
+
+    @Override
+    public ImmutableList<String> query(String owner, TagQuery query) {
+        return delegate.query(owner, query);
+    }
+
+    @Override
+    public int count(String owner, RetrievalOperator operator, ImmutableList<String> tags) {
+        return cache.get(owner, operator, tags)
+                .map(List::size)
+                .orElseGet(() -> delegate.count(owner, operator, tags));
+    }
+
+    @Override
+    public boolean exists(String owner, RetrievalOperator operator, ImmutableList<String> tags) {
+        return cache.get(owner, operator, tags)
+                .map(entities -> !entities.isEmpty())
+                .orElseGet(() -> delegate.exists(owner, operator, tags));
+    }
+
+    @Override
+    public void retrieveEach(String owner, RetrievalOperator operator, ImmutableList<String> tags, Consumer<String> consumer) {
+        delegate.retrieveEach(owner, operator, tags, consumer);
+    }
+
+    @Override
+    public void addTag(String owner, String uuid, String tag) throws EntityDoesNotExistException, TagDoesNotExistException, EntityNotOwnedException, TagAlreadyOnEntityException {
+        delegate.addTag(owner, uuid, tag);
+        // the ancestors the tag replaces on the entity still match it through the tag, so only the tag is invalidated
+        cache.invalidate(owner, tag);
+    }
+
+    @Override
+    public ImmutableList<TaggingResult> addTags(String owner, Map<String, List<String>> tags) {
+        ImmutableList<TaggingResult> results = delegate.addTags(owner, tags);
+        results.stream()
+                .filter(result -> TaggingOutcome.ADDED == result.outcome())
+                .map(TaggingResult::tag)
+                .distinct()
+                .forEach(tag -> cache.invalidate(owner, tag));
+        return results;
+    }
+
+    @Override
+    public void removeTag(String owner, String uuid, String tag) throws EntityDoesNotExistException, TagDoesNotExistException, EntityNotOwnedException {
+        delegate.removeTag(owner, uuid, tag);
+        cache.invalidate(owner, tag);
+    }
+
+    @Override
+    public ImmutableList<String> getTags(String owner, String uuid) throws EntityDoesNotExistException, EntityNotOwnedException {
+        return delegate.getTags(owner, uuid);
+    }
+
+    @Override
+    public ImmutableSetMultimap<String, String> getAllTags(String owner) {
+        return delegate.getAllTags(owner);
+    }
+}
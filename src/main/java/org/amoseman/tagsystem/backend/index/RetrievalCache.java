@@ -0,0 +1,288 @@
+package org.amoseman.tagsystem.backend.index;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
+import org.amoseman.tagsystem.backend.dao.RetrievalOperator;
+
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded cache of the results of retrievals by tag.
+ * Results are keyed by owner, operator, and the distinct tags retrieved by, and each is indexed under its owner by
+ * the tags it was expanded into, so that a change to the tags of an entity evicts only the results of its owner
+ * involving the tag, and a change to the hierarchy evicts only the results whose expansion reached the changed tag,
+ * without scanning the rest of the cache.
+ * The cache is bounded by the number of entities it holds rather than the number of results, as a single result may
+ * hold any number of entities.
+ */
+public class RetrievalCache {
+    /**
+     * The share of the cache a single result may take at most, as a larger result would evict most of the rest.
+     */
+    private static final int RESULT_SHARE = 16;
+    /**
+     * The number of stamps the owners are spread across, so that the stamps stay bounded however many owners there are.
+     */
+    private static final int STAMP_STRIPES = 1024;
+    private final Cache<Key, Entry> cache;
+    private final long maximumResultSize;
+    private final ConcurrentMap<String, Owner> owners;
+    private final AtomicLongArray invalidations;
+    private final TagHierarchyIndex hierarchy;
+    private final Counter hits;
+    private final Counter misses;
+    private final Meter evictions;
+    private final Meter skips;
+
+    /**
+     * Instantiate a retrieval cache.
+     * @param maximumWeight the maximum number of entities to cache, across every result.
+     * @param hierarchy the cached tag hierarchy, used to expand tags into their tag groups.
+     * @param metrics the registry to report hits, misses, evictions, and skipped results to.
+     */
+    public RetrievalCache(final long maximumWeight, final TagHierarchyIndex hierarchy, final MetricRegistry metrics) {
+        Preconditions.checkNotNull(hierarchy, "the retrieval cache requires the tag hierarchy to be cached");
+        // weighed one more than its entities, so that empty results are bounded too
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maximumWeight)
+                .weigher((Key key, Entry entry) -> 1 + entry.entities().size())
+                .removalListener(this::removed)
+                .build();
+        this.maximumResultSize = maximumWeight / RESULT_SHARE;
+        this.owners = new ConcurrentHashMap<>();
+        this.invalidations = new AtomicLongArray(STAMP_STRIPES);
+        this.hierarchy = hierarchy;
+        this.hits = metrics.counter("retrieval-cache-hits");
+        this.misses = metrics.counter("retrieval-cache-misses");
+        this.evictions = metrics.meter("retrieval-cache-evictions");
+        this.skips = metrics.meter("retrieval-cache-skips");
+        metrics.register("retrieval-cache-size", (Gauge<Long>) cache::size);
+        metrics.register("retrieval-cache-hit-ratio", new RatioGauge() {
+            @Override
+            protected Ratio getRatio() {
+                return Ratio.of(hits.getCount(), hits.getCount() + misses.getCount());
+            }
+        });
+    }
+
+    private void removed(RemovalNotification<Key, Entry> notification) {
+        if (notification.wasEvicted()) {
+            evictions.mark();
+        }
+        Entry entry = notification.getValue();
+        Owner state = owners.get(entry.key().owner());
+        if (null != state) {
+            state.unindex(entry);
+            retire(entry.key().owner());
+        }
+    }
+
+    /**
+     * Drop the index of an owner once it has no results left, so that owners are not kept once their results are.
+     * Done under the lock of the owner in the map, as results are indexed, so that no result is indexed into an
+     * index which has been dropped.
+     */
+    private void retire(String owner) {
+        owners.computeIfPresent(owner, (name, state) -> state.entries.isEmpty() ? null : state);
+    }
+
+    private static int stripe(String owner) {
+        return Math.floorMod(owner.hashCode(), STAMP_STRIPES);
+    }
+
+    /**
+     * Get the current stamp of the results of an owner.
+     * To be taken before retrieving, and passed to put, so that a result which raced an invalidation is not cached.
+     * @param owner the owner.
+     * @return the stamp.
+     */
+    public long stamp(final String owner) {
+        return invalidations.get(stripe(owner));
+    }
+
+    /**
+     * Get a cached result.
+     * @param owner the owner of the entities.
+     * @param operator the operator the entities were matched by.
+     * @param tags the tags the entities were matched by.
+     * @return the entities, if the retrieval is cached.
+     */
+    public Optional<ImmutableList<String>> get(final String owner, final RetrievalOperator operator, final ImmutableList<String> tags) {
+        Entry entry = cache.getIfPresent(new Key(owner, operator, ImmutableSortedSet.copyOf(tags)));
+        if (null == entry) {
+            misses.inc();
+            return Optional.empty();
+        }
+        hits.inc();
+        return Optional.of(entry.entities());
+    }
+
+    /**
+     * Cache the result of a retrieval.
+     * A result of more entities than a share of the cache is not cached.
+     * @param owner the owner of the entities.
+     * @param operator the operator the entities were matched by.
+     * @param tags the tags the entities were matched by.
+     * @param entities the entities.
+     * @param stamp the stamp of the owner from before the entities were retrieved.
+     */
+    public void put(final String owner, final RetrievalOperator operator, final ImmutableList<String> tags, final ImmutableList<String> entities, final long stamp) {
+        if (entities.size() > maximumResultSize) {
+            skips.mark();
+            return;
+        }
+        ImmutableSortedSet<String> roots = ImmutableSortedSet.copyOf(tags);
+        ImmutableSet.Builder<String> expanded = ImmutableSet.builder();
+        for (String root : roots) {
+            expanded.add(root).addAll(hierarchy.getDescendants(root));
+        }
+        Key key = new Key(owner, operator, roots);
+        Entry entry = new Entry(key, expanded.build(), entities);
+        // indexed before it is cached, so that an invalidation after the stamp check always finds it
+        owners.compute(owner, (name, state) -> {
+            Owner indexed = null == state ? new Owner() : state;
+            indexed.index(entry);
+            return indexed;
+        });
+        cache.put(key, entry);
+        if (stamp != invalidations.get(stripe(owner))) {
+            cache.asMap().remove(key, entry);
+        }
+    }
+
+    /**
+     * Invalidate the results of an owner involving a tag.
+     * To be called whenever the tag is added to or removed from an entity of the owner.
+     * @param owner the owner.
+     * @param tag the tag.
+     */
+    public void invalidate(final String owner, final String tag) {
+        invalidations.incrementAndGet(stripe(owner));
+        Owner state = owners.get(owner);
+        if (null != state) {
+            evict(state.entries.remove(tag));
+            retire(owner);
+        }
+    }
+
+    /**
+     * Invalidate every result of an owner.
+     * @param owner the owner.
+     */
+    public void invalidateOwner(final String owner) {
+        invalidations.incrementAndGet(stripe(owner));
+        Owner state = owners.get(owner);
+        if (null != state) {
+            for (String tag : state.entries.keySet()) {
+                evict(state.entries.remove(tag));
+            }
+            retire(owner);
+        }
+    }
+
+    /**
+     * Invalidate the results of every owner whose expansion reached a tag.
+     * To be called whenever the descendants of the tag change, or the tag is deleted.
+     * @param tag the tag.
+     */
+    public void invalidateHierarchy(final String tag) {
+        for (int stripe = 0; stripe < STAMP_STRIPES; stripe++) {
+            invalidations.incrementAndGet(stripe);
+        }
+        for (String owner : owners.keySet()) {
+            Owner state = owners.get(owner);
+            if (null != state) {
+                evict(state.entries.remove(tag));
+                retire(owner);
+            }
+        }
+    }
+
+    private void evict(Set<Entry> entries) {
+        if (null == entries) {
+            return;
+        }
+        for (Entry entry : entries) {
+            // removed only if still cached, so that a newer result under the same key is left to its own index
+            cache.asMap().remove(entry.key(), entry);
+        }
+    }
+
+    /**
+     * The cached results of an owner, indexed by the tags they were expanded into.
+     * The stamp of the owner is advanced before the index is read, so that a result put during an invalidation is
+     * either found in the index or discarded by its own stamp check. The stamps are kept apart from the index, so that
+     * a stamp outlives an index dropped and indexed again while a retrieval is under way.
+     */
+    private static final class Owner {
+        private final ConcurrentMap<String, Set<Entry>> entries = new ConcurrentHashMap<>();
+
+        private void index(Entry entry) {
+            for (String tag : entry.expanded()) {
+                entries.compute(tag, (name, indexed) -> {
+                    Set<Entry> set = null == indexed ? ConcurrentHashMap.newKeySet() : indexed;
+                    set.add(entry);
+                    return set;
+                });
+            }
+        }
+
+        private void unindex(Entry entry) {
+            for (String tag : entry.expanded()) {
+                entries.computeIfPresent(tag, (name, indexed) -> {
+                    indexed.remove(entry);
+                    return indexed.isEmpty() ? null : indexed;
+                });
+            }
+        }
+    }
+
+    private record Key(String owner, RetrievalOperator operator, ImmutableSortedSet<String> tags) {}
+
+    /**
+     * A cached result, compared by identity, so that each result is indexed and evicted on its own even when an
+     * equal result is cached under the same key.
+     */
+    private static final class Entry {
+        private final Key key;
+        private final ImmutableSet<String> expanded;
+        private final ImmutableList<String> entities;
+
+        /**
+         * @param key the key the result is cached under.
+         * @param expanded the tags the result was expanded into, its own and their descendants.
+         * @param entities the entities retrieved.
+         */
+        private Entry(Key key, ImmutableSet<String> expanded, ImmutableList<String> entities) {
+            this.key = key;
+            this.expanded = expanded;
+            this.entities = entities;
+        }
+
+        private Key key() {
+            return key;
+        }
+
+        private ImmutableSet<String> expanded() {
+            return expanded;
+        }
+
+        private ImmutableList<String> entities() {
+            return entities;
+        }
+    }
+}
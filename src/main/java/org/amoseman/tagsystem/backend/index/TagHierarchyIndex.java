@@ -0,0 +1,244 @@
+package org.amoseman.tagsystem.backend.index;
+
+import com.google.common.collect.ImmutableList;
+import org.roaringbitmap.IntIterator;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.util.*;
+import java.util.function.IntConsumer;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An in-memory index of the tag inheritance hierarchy.
+ * Tags are interned to integer IDs, and the descendants and ancestors of every tag are precomputed,
+ * so that subtree and ancestry lookups do not need to touch the database, and checking for an inheritance loop
+ * is a single bitmap probe. The closures are compressed bitmaps, as in a large taxonomy most tags reach only a
+ * small fraction of the others, and are maintained incrementally as inheritances are added and removed.
+ */
+public class TagHierarchyIndex {
+    private final Map<String, Integer> ids;
+    private final List<String> names;
+    private final List<RoaringBitmap> children;
+    private final List<RoaringBitmap> parents;
+    private final List<RoaringBitmap> descendants;
+    private final List<RoaringBitmap> ancestors;
+    private final Deque<Integer> free;
+    private final ReadWriteLock lock;
+
+    /**
+     * Instantiate an empty tag hierarchy index.
+     */
+    public TagHierarchyIndex() {
+        this.ids = new HashMap<>();
+        this.names = new ArrayList<>();
+        this.children = new ArrayList<>();
+        this.parents = new ArrayList<>();
+        this.descendants = new ArrayList<>();
+        this.ancestors = new ArrayList<>();
+        this.free = new ArrayDeque<>();
+        this.lock = new ReentrantReadWriteLock();
+    }
+
+    private int intern(String tag) {
+        Integer id = ids.get(tag);
+        if (null != id) {
+            return id;
+        }
+        if (free.isEmpty()) {
+            id = names.size();
+            names.add(tag);
+            children.add(new RoaringBitmap());
+            parents.add(new RoaringBitmap());
+            descendants.add(new RoaringBitmap());
+            ancestors.add(new RoaringBitmap());
+        }
+        else {
+            id = free.pop();
+            names.set(id, tag);
+        }
+        ids.put(tag, id);
+        return id;
+    }
+
+    /**
+     * Record that the child tag inherits the parent tag.
+     * @param parent the parent tag.
+     * @param child the child tag.
+     */
+    public void addChild(String parent, String child) {
+        lock.writeLock().lock();
+        try {
+            int p = intern(parent);
+            int c = intern(child);
+            children.get(p).add(c);
+            parents.get(c).add(p);
+
+            RoaringBitmap newDescendants = descendants.get(c).clone();
+            newDescendants.add(c);
+            RoaringBitmap updatedAncestors = ancestors.get(p).clone();
+            updatedAncestors.add(p);
+            forEach(updatedAncestors, a -> descendants.get(a).or(newDescendants));
+            forEach(newDescendants, d -> ancestors.get(d).or(updatedAncestors));
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove the inheritance of the child tag of the parent tag.
+     * @param parent the parent tag.
+     * @param child the child tag.
+     */
+    public void removeChild(String parent, String child) {
+        lock.writeLock().lock();
+        try {
+            Integer p = ids.get(parent);
+            Integer c = ids.get(child);
+            if (null == p || null == c || !children.get(p).contains(c)) {
+                return;
+            }
+            children.get(p).remove(c);
+            parents.get(c).remove(p);
+
+            // only the ancestors of the parent can lose descendants, and only the descendants of the child can lose ancestors
+            RoaringBitmap staleDescendants = ancestors.get(p).clone();
+            staleDescendants.add(p);
+            RoaringBitmap staleAncestors = descendants.get(c).clone();
+            staleAncestors.add(c);
+            recompute(staleDescendants, children, descendants);
+            recompute(staleAncestors, parents, ancestors);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove a tag, and all of its inheritance relationships, from the index.
+     * @param tag the tag.
+     */
+    public void remove(String tag) {
+        lock.writeLock().lock();
+        try {
+            Integer id = ids.get(tag);
+            if (null == id) {
+                return;
+            }
+            RoaringBitmap directParents = parents.get(id).clone();
+            RoaringBitmap directChildren = children.get(id).clone();
+            forEach(directParents, p -> removeChild(names.get(p), tag));
+            forEach(directChildren, c -> removeChild(tag, names.get(c)));
+            ids.remove(tag);
+            names.set(id, null);
+            free.push(id);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Get every tag which directly or indirectly inherits the provided tag.
+     * @param tag the tag.
+     * @return the descendants of the tag.
+     */
+    public ImmutableList<String> getDescendants(String tag) {
+        return closure(tag, descendants);
+    }
+
+    /**
+     * Get every tag which the provided tag directly or indirectly inherits.
+     * @param tag the tag.
+     * @return the ancestors of the tag.
+     */
+    public ImmutableList<String> getAncestors(String tag) {
+        return closure(tag, ancestors);
+    }
+
+    /**
+     * Check if a tag directly or indirectly inherits another tag.
+     * @param ancestor the potential ancestor.
+     * @param tag the tag.
+     * @return the result of the check.
+     */
+    public boolean isDescendant(String ancestor, String tag) {
+        lock.readLock().lock();
+        try {
+            Integer a = ids.get(ancestor);
+            Integer t = ids.get(tag);
+            return null != a && null != t && descendants.get(a).contains(t);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Check if setting the child tag to inherit the parent tag would result in an inheritance loop.
+     * @param parent the parent tag.
+     * @param child the child tag.
+     * @return the result of the check.
+     */
+    public boolean createsLoop(String parent, String child) {
+        return parent.equals(child) || isDescendant(child, parent);
+    }
+
+    private ImmutableList<String> closure(String tag, List<RoaringBitmap> closures) {
+        lock.readLock().lock();
+        try {
+            Integer id = ids.get(tag);
+            if (null == id) {
+                return ImmutableList.of();
+            }
+            ImmutableList.Builder<String> builder = ImmutableList.builder();
+            forEach(closures.get(id), i -> builder.add(names.get(i)));
+            return builder.build();
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void recompute(RoaringBitmap stale, List<RoaringBitmap> edges, List<RoaringBitmap> closures) {
+        forEach(stale, i -> closures.set(i, null));
+        forEach(stale, i -> recompute(i, edges, closures));
+    }
+
+    /**
+     * Recompute the closure of a tag, and of any tags it reaches whose closures are stale, in post-order.
+     * The traversal uses an explicit stack, so that a deep hierarchy does not overflow the call stack.
+     */
+    private void recompute(int id, List<RoaringBitmap> edges, List<RoaringBitmap> closures) {
+        Deque<Integer> stack = new ArrayDeque<>();
+        stack.push(id);
+        while (!stack.isEmpty()) {
+            int current = stack.peek();
+            if (null != closures.get(current)) {
+                stack.pop();
+                continue;
+            }
+            boolean ready = true;
+            for (IntIterator iterator = edges.get(current).getIntIterator(); iterator.hasNext(); ) {
+                int next = iterator.next();
+                if (null == closures.get(next)) {
+                    stack.push(next);
+                    ready = false;
+                }
+            }
+            if (ready) {
+                stack.pop();
+                RoaringBitmap result = edges.get(current).clone();
+                forEach(edges.get(current), next -> result.or(closures.get(next)));
+                closures.set(current, result);
+            }
+        }
+    }
+
+    private static void forEach(RoaringBitmap set, IntConsumer consumer) {
+        for (IntIterator iterator = set.getIntIterator(); iterator.hasNext(); ) {
+            consumer.accept(iterator.next());
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package org.amoseman.tagsystem.backend.metrics;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import org.jooq.ExecuteContext;
+import org.jooq.ExecuteListener;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the SQL statements executed, both overall and by each method of the data access objects.
+ * As a jOOQ execute listener, it times every statement and counts the statements executed by each thread. Data
+ * access objects wrapped by instrument then time each of their methods, and record how many statements each call
+ * executed, so that a method which executes a statement per item shows up as a wide histogram.
+ */
+public class QueryMetrics implements ExecuteListener {
+    private static final String START = QueryMetrics.class.getName() + ".start";
+    private final MetricRegistry metrics;
+    private final Timer statements;
+    private final ThreadLocal<long[]> executed;
+
+    /**
+     * Instantiate query metrics.
+     * @param metrics the registry to report to.
+     */
+    public QueryMetrics(MetricRegistry metrics) {
+        this.metrics = metrics;
+        this.statements = metrics.timer("sql-statements");
+        this.executed = ThreadLocal.withInitial(() -> new long[1]);
+    }
+
+    @Override
+    public void executeStart(ExecuteContext context) {
+        context.data(START, System.nanoTime());
+    }
+
+    @Override
+    public void executeEnd(ExecuteContext context) {
+        Object start = context.data(START);
+        if (start instanceof Long nanos) {
+            statements.update(System.nanoTime() - nanos, TimeUnit.NANOSECONDS);
+        }
+        executed.get()[0]++;
+    }
+
+    /**
+     * Wrap a data access object, so that each of its methods is timed, and the statements it executes are counted.
+     * A method is reported as the simple name of the interface and the name of the method, followed by its number of
+     * parameters if the method is overloaded.
+     * @param type the interface of the data access object.
+     * @param delegate the data access object.
+     * @return the wrapped data access object.
+     * @param <T> the interface of the data access object.
+     */
+    public <T> T instrument(Class<T> type, T delegate) {
+        Map<Method, Instruments> instruments = new HashMap<>();
+        for (Method method : type.getMethods()) {
+            String name = MetricRegistry.name(type.getSimpleName(), method.getName());
+            boolean overloaded = 1 < Arrays.stream(type.getMethods())
+                    .filter(other -> other.getName().equals(method.getName()))
+                    .count();
+            if (overloaded) {
+                name = MetricRegistry.name(name, String.valueOf(method.getParameterCount()));
+            }
+            instruments.put(method, new Instruments(metrics.timer(name), metrics.histogram(MetricRegistry.name(name, "statements"))));
+        }
+        InvocationHandler handler = (proxy, method, arguments) -> {
+            Instruments instrument = instruments.get(method);
+            if (null == instrument) {
+                return invoke(delegate, method, arguments);
+            }
+            long before = executed.get()[0];
+            try (Timer.Context ignored = instrument.timer().time()) {
+                return invoke(delegate, method, arguments);
+            }
+            finally {
+                instrument.statements().update(executed.get()[0] - before);
+            }
+        };
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, handler));
+    }
+
+    private static Object invoke(Object delegate, Method method, Object[] arguments) throws Throwable {
+        try {
+            return method.invoke(delegate, arguments);
+        }
+        catch (InvocationTargetException e) {
+            // rethrown as is, so that callers still see the checked exceptions of the data access object
+            throw e.getCause();
+        }
+    }
+
+    private record Instruments(Timer timer, Histogram statements) {}
+}
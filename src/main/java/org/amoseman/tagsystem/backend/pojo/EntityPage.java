@@ -0,0 +1,11 @@
+package org.amoseman.tagsystem.backend.pojo;
+
+import java.util.List;
+
+/**
+ * A page of retrieved entities.
+ * @param entities the UUIDs of the entities.
+ * @param cursor the cursor to retrieve the next page with, or null if this is the last page.
+ */
+public record EntityPage(List<String> entities, String cursor) {
+}
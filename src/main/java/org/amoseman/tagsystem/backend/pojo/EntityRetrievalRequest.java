@@ -8,6 +8,9 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 public class EntityRetrievalRequest {
     private String operator;
     private String[] tags;
+    private Integer limit;
+    private String cursor;
+    private boolean stream;
 
     /**
      * Instantiate an empty entity retrieval request.
@@ -43,4 +46,43 @@ public class EntityRetrievalRequest {
     public void setTags(String[] tags) {
         this.tags = tags;
     }
+
+    /**
+     * Get the maximum number of entities to retrieve in a page.
+     * @return the limit, or null to retrieve every entity at once.
+     */
+    @JsonProperty
+    public Integer getLimit() {
+        return limit;
+    }
+
+    public void setLimit(Integer limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Get the cursor returned with the previous page.
+     * @return the cursor, or null to retrieve the first page.
+     */
+    @JsonProperty
+    public String getCursor() {
+        return cursor;
+    }
+
+    public void setCursor(String cursor) {
+        this.cursor = cursor;
+    }
+
+    /**
+     * Get whether to stream the entities as they are retrieved, rather than collecting them first.
+     * @return whether to stream.
+     */
+    @JsonProperty
+    public boolean isStream() {
+        return stream;
+    }
+
+    public void setStream(boolean stream) {
+        this.stream = stream;
+    }
 }
@@ -0,0 +1,9 @@
+package org.amoseman.tagsystem.backend.pojo;
+
+/**
+ * A bearer token issued on login.
+ * @param token the token.
+ * @param expires when the token expires, in seconds since the epoch.
+ */
+public record LoginResponse(String token, long expires) {
+}
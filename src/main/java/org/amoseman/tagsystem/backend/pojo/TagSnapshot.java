@@ -0,0 +1,11 @@
+package org.amoseman.tagsystem.backend.pojo;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * An immutable snapshot of every tag.
+ * @param version the version of the snapshot, which increases whenever a tag is created or deleted.
+ * @param tags the tags, in order of creation.
+ */
+public record TagSnapshot(long version, ImmutableSet<String> tags) {
+}
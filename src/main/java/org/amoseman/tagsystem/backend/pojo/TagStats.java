@@ -0,0 +1,11 @@
+package org.amoseman.tagsystem.backend.pojo;
+
+/**
+ * The statistics of how a tag is used.
+ * @param tag the tag.
+ * @param entities the number of entities tagged with the tag, across every owner.
+ * @param owners the number of owners with entities tagged with the tag.
+ * @param owned the number of entities of the requesting user tagged with the tag.
+ */
+public record TagStats(String tag, long entities, long owners, long owned) {
+}
@@ -0,0 +1,12 @@
+package org.amoseman.tagsystem.backend.pojo;
+
+import org.amoseman.tagsystem.backend.dao.TaggingOutcome;
+
+/**
+ * The result of adding a single tag to a single entity, as part of a bulk tagging request.
+ * @param entity the UUID of the entity.
+ * @param tag the tag.
+ * @param outcome the outcome.
+ */
+public record TaggingResult(String entity, String tag, TaggingOutcome outcome) {
+}
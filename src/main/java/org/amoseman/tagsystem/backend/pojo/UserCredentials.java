@@ -0,0 +1,30 @@
+package org.amoseman.tagsystem.backend.pojo;
+
+import com.google.common.collect.ImmutableSet;
+import org.amoseman.tagsystem.backend.authentication.User;
+
+/**
+ * Everything needed to authenticate a user, read at once.
+ * @param username the username.
+ * @param hash the base 64 encoding of the hash of the password.
+ * @param salt the salt used in hashing the password.
+ * @param roles the roles of the user.
+ */
+public record UserCredentials(String username, String hash, byte[] salt, ImmutableSet<String> roles) {
+    public UserCredentials {
+        salt = salt.clone();
+    }
+
+    @Override
+    public byte[] salt() {
+        return salt.clone();
+    }
+
+    /**
+     * Get the user the credentials belong to.
+     * @return the user.
+     */
+    public User user() {
+        return new User(username, roles);
+    }
+}
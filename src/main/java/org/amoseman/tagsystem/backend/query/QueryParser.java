@@ -0,0 +1,147 @@
+package org.amoseman.tagsystem.backend.query;
+
+import com.google.common.collect.ImmutableList;
+import org.amoseman.tagsystem.backend.exception.query.InvalidQueryException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Parses tag queries such as {@code (cat OR dog) AND NOT "stray animal"}.
+ * The operators are, from loosest to tightest binding, OR, AND, and NOT, and must be written in upper case.
+ * Parentheses group, and tags containing spaces, parentheses, or quotes, or named after an operator, may be quoted,
+ * with a backslash escaping a quote or backslash within.
+ */
+public final class QueryParser {
+    private static final String AND = "AND";
+    private static final String OR = "OR";
+    private static final String NOT = "NOT";
+    private static final String OPEN = "(";
+    private static final String CLOSE = ")";
+    private final String query;
+    private final List<Token> tokens;
+    private int position;
+
+    private QueryParser(String query, List<Token> tokens) {
+        this.query = query;
+        this.tokens = tokens;
+        this.position = 0;
+    }
+
+    /**
+     * Parse a tag query.
+     * @param query the query.
+     * @return the parsed query.
+     * @throws InvalidQueryException if the query is malformed.
+     */
+    public static TagQuery parse(String query) throws InvalidQueryException {
+        QueryParser parser = new QueryParser(query, tokenize(query));
+        TagQuery parsed = parser.or();
+        if (parser.position < parser.tokens.size()) {
+            throw new InvalidQueryException(query, String.format("unexpected %s", parser.tokens.get(parser.position).text()));
+        }
+        return parsed;
+    }
+
+    private static List<Token> tokenize(String query) throws InvalidQueryException {
+        List<Token> tokens = new ArrayList<>();
+        int i = 0;
+        while (i < query.length()) {
+            char c = query.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            }
+            else if ('(' == c || ')' == c) {
+                tokens.add(new Token(String.valueOf(c), false));
+                i++;
+            }
+            else if ('"' == c) {
+                StringBuilder builder = new StringBuilder();
+                i++;
+                while (i < query.length() && '"' != query.charAt(i)) {
+                    if ('\\' == query.charAt(i) && i + 1 < query.length()) {
+                        i++;
+                    }
+                    builder.append(query.charAt(i));
+                    i++;
+                }
+                if (i >= query.length()) {
+                    throw new InvalidQueryException(query, "unterminated quote");
+                }
+                tokens.add(new Token(builder.toString(), true));
+                i++;
+            }
+            else {
+                int start = i;
+                while (i < query.length() && !Character.isWhitespace(query.charAt(i)) && "()\"".indexOf(query.charAt(i)) < 0) {
+                    i++;
+                }
+                tokens.add(new Token(query.substring(start, i), false));
+            }
+        }
+        return tokens;
+    }
+
+    private boolean accept(String keyword) {
+        if (position < tokens.size() && tokens.get(position).is(keyword)) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private TagQuery or() throws InvalidQueryException {
+        List<TagQuery> operands = new ArrayList<>();
+        operands.add(and());
+        while (accept(OR)) {
+            operands.add(and());
+        }
+        return 1 == operands.size() ? operands.get(0) : new TagQuery.Or(ImmutableList.copyOf(operands));
+    }
+
+    private TagQuery and() throws InvalidQueryException {
+        List<TagQuery> operands = new ArrayList<>();
+        operands.add(not());
+        while (accept(AND)) {
+            operands.add(not());
+        }
+        return 1 == operands.size() ? operands.get(0) : new TagQuery.And(ImmutableList.copyOf(operands));
+    }
+
+    private TagQuery not() throws InvalidQueryException {
+        if (accept(NOT)) {
+            return new TagQuery.Not(not());
+        }
+        return operand();
+    }
+
+    private TagQuery operand() throws InvalidQueryException {
+        if (position >= tokens.size()) {
+            throw new InvalidQueryException(query, "unexpected end of query");
+        }
+        if (accept(OPEN)) {
+            TagQuery inner = or();
+            if (!accept(CLOSE)) {
+                throw new InvalidQueryException(query, "missing closing parenthesis");
+            }
+            return inner;
+        }
+        Token token = tokens.get(position);
+        if (!token.quoted() && (token.is(CLOSE) || token.is(AND) || token.is(OR))) {
+            throw new InvalidQueryException(query, String.format("unexpected %s", token.text()));
+        }
+        position++;
+        return new TagQuery.Tag(token.text());
+    }
+
+    /**
+     * A word, parenthesis, or quoted tag of a query.
+     * @param text the text of the token, without quotes.
+     * @param quoted whether the token was quoted, and so is always a tag.
+     */
+    private record Token(String text, boolean quoted) {
+        private boolean is(String keyword) {
+            return !quoted && keyword.equals(text);
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package org.amoseman.tagsystem.backend.query;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.ToLongFunction;
+
+/**
+ * Rewrites tag queries into cheaper equivalent plans, using estimates of how many entities each tag matches.
+ * Nested operators of the same kind are flattened, branches which can match nothing are pruned, double negations
+ * are removed, and the operands of an intersection are ordered from the fewest estimated matches to the most, with
+ * negations last, so that evaluation narrows the result as early as possible.
+ */
+public final class QueryPlanner {
+    private final ToLongFunction<String> estimates;
+    private final long universe;
+
+    /**
+     * Instantiate a query planner.
+     * @param estimates the estimated number of entities each tag matches, including through its descendants.
+     * @param universe the number of entities the query runs over.
+     */
+    public QueryPlanner(ToLongFunction<String> estimates, long universe) {
+        this.estimates = estimates;
+        this.universe = universe;
+    }
+
+    /**
+     * Plan a query.
+     * @param query the query.
+     * @return the plan, an equivalent query.
+     */
+    public TagQuery plan(TagQuery query) {
+        return planned(query).query();
+    }
+
+    private Planned planned(TagQuery query) {
+        if (query instanceof TagQuery.Tag tag) {
+            long estimate = Math.min(universe, estimates.applyAsLong(tag.name()));
+            return 0 < estimate ? new Planned(tag, estimate) : new Planned(new TagQuery.None(), 0);
+        }
+        if (query instanceof TagQuery.Not not) {
+            Planned operand = planned(not.operand());
+            if (operand.query() instanceof TagQuery.None) {
+                return new Planned(new TagQuery.All(), universe);
+            }
+            if (operand.query() instanceof TagQuery.All) {
+                return new Planned(new TagQuery.None(), 0);
+            }
+            if (operand.query() instanceof TagQuery.Not inner) {
+                return planned(inner.operand());
+            }
+            return new Planned(new TagQuery.Not(operand.query()), universe - operand.estimate());
+        }
+        if (query instanceof TagQuery.And and) {
+            return intersection(and.operands());
+        }
+        if (query instanceof TagQuery.Or or) {
+            return union(or.operands());
+        }
+        if (query instanceof TagQuery.All) {
+            return new Planned(query, universe);
+        }
+        return new Planned(query, 0);
+    }
+
+    private Planned intersection(List<TagQuery> operands) {
+        List<Planned> positive = new ArrayList<>();
+        List<Planned> negative = new ArrayList<>();
+        for (Planned operand : flatten(operands, TagQuery.And.class)) {
+            if (operand.query() instanceof TagQuery.None) {
+                return operand;
+            }
+            if (operand.query() instanceof TagQuery.Not) {
+                negative.add(operand);
+            }
+            else if (!(operand.query() instanceof TagQuery.All)) {
+                positive.add(operand);
+            }
+        }
+        positive.sort(Comparator.comparingLong(Planned::estimate));
+        negative.sort(Comparator.comparingLong(Planned::estimate));
+        List<Planned> ordered = new ArrayList<>(positive);
+        ordered.addAll(negative);
+        if (ordered.isEmpty()) {
+            return new Planned(new TagQuery.All(), universe);
+        }
+        if (1 == ordered.size()) {
+            return ordered.get(0);
+        }
+        long estimate = ordered.stream().mapToLong(Planned::estimate).min().orElse(universe);
+        return new Planned(new TagQuery.And(ordered.stream().map(Planned::query).collect(ImmutableList.toImmutableList())), estimate);
+    }
+
+    private Planned union(List<TagQuery> operands) {
+        List<Planned> remaining = new ArrayList<>();
+        for (Planned operand : flatten(operands, TagQuery.Or.class)) {
+            if (operand.query() instanceof TagQuery.All) {
+                return operand;
+            }
+            if (!(operand.query() instanceof TagQuery.None)) {
+                remaining.add(operand);
+            }
+        }
+        // the operands most likely to match come first, as an entity matching any of them is matched
+        remaining.sort(Comparator.comparingLong(Planned::estimate).reversed());
+        if (remaining.isEmpty()) {
+            return new Planned(new TagQuery.None(), 0);
+        }
+        if (1 == remaining.size()) {
+            return remaining.get(0);
+        }
+        long estimate = Math.min(universe, remaining.stream().mapToLong(Planned::estimate).sum());
+        return new Planned(new TagQuery.Or(remaining.stream().map(Planned::query).collect(ImmutableList.toImmutableList())), estimate);
+    }
+
+    /**
+     * Plan the operands of an operator, lifting the operands of any operands of the same kind into it.
+     * @param operands the operands.
+     * @param kind the kind of operator.
+     * @return the planned operands.
+     */
+    private List<Planned> flatten(List<TagQuery> operands, Class<? extends TagQuery> kind) {
+        List<Planned> flattened = new ArrayList<>();
+        for (TagQuery operand : operands) {
+            if (kind.isInstance(operand)) {
+                flattened.addAll(flatten(operands(operand), kind));
+                continue;
+            }
+            Planned planned = planned(operand);
+            if (kind.isInstance(planned.query())) {
+                flattened.addAll(flatten(operands(planned.query()), kind));
+            }
+            else {
+                flattened.add(planned);
+            }
+        }
+        return flattened;
+    }
+
+    private static ImmutableList<TagQuery> operands(TagQuery query) {
+        if (query instanceof TagQuery.And and) {
+            return and.operands();
+        }
+        if (query instanceof TagQuery.Or or) {
+            return or.operands();
+        }
+        return ImmutableList.of(query);
+    }
+
+    /**
+     * Find every tag a query refers to.
+     * @param query the query.
+     * @return the distinct tags.
+     */
+    public static ImmutableSet<String> tags(TagQuery query) {
+        ImmutableSet.Builder<String> builder = ImmutableSet.builder();
+        collect(query, builder);
+        return builder.build();
+    }
+
+    private static void collect(TagQuery query, ImmutableSet.Builder<String> builder) {
+        if (query instanceof TagQuery.Tag tag) {
+            builder.add(tag.name());
+        }
+        else if (query instanceof TagQuery.Not not) {
+            collect(not.operand(), builder);
+        }
+        else {
+            for (TagQuery operand : operands(query)) {
+                if (operand != query) {
+                    collect(operand, builder);
+                }
+            }
+        }
+    }
+
+    /**
+     * Check whether evaluating a plan requires the set of every entity, rather than only the sets of its tags.
+     * This is the case when a negation, or a match of every entity, is not preceded within an intersection by an
+     * operand to narrow down from.
+     * @param plan the plan.
+     * @return whether the set of every entity is required.
+     */
+    public static boolean requiresUniverse(TagQuery plan) {
+        return requiresUniverse(plan, false);
+    }
+
+    private static boolean requiresUniverse(TagQuery plan, boolean narrowed) {
+        if (plan instanceof TagQuery.All || plan instanceof TagQuery.Not) {
+            return !narrowed;
+        }
+        if (plan instanceof TagQuery.Or or) {
+            return or.operands().stream().anyMatch(operand -> requiresUniverse(operand, narrowed));
+        }
+        if (plan instanceof TagQuery.And and) {
+            boolean within = narrowed;
+            for (TagQuery operand : and.operands()) {
+                if (requiresUniverse(operand, within)) {
+                    return true;
+                }
+                within = true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A planned query, along with the estimated number of entities it matches.
+     */
+    private record Planned(TagQuery query, long estimate) {}
+}
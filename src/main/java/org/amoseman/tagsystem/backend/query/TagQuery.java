@@ -0,0 +1,43 @@
+package org.amoseman.tagsystem.backend.query;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * A boolean expression over tags, matching the entities it is true for.
+ * A tag matches every entity tagged with it or any of its descendants.
+ */
+public sealed interface TagQuery {
+    /**
+     * Matches the entities tagged under a tag.
+     * @param name the name of the tag.
+     */
+    record Tag(String name) implements TagQuery {}
+
+    /**
+     * Matches the entities matched by every operand.
+     * @param operands the operands.
+     */
+    record And(ImmutableList<TagQuery> operands) implements TagQuery {}
+
+    /**
+     * Matches the entities matched by any operand.
+     * @param operands the operands.
+     */
+    record Or(ImmutableList<TagQuery> operands) implements TagQuery {}
+
+    /**
+     * Matches the entities not matched by the operand.
+     * @param operand the operand.
+     */
+    record Not(TagQuery operand) implements TagQuery {}
+
+    /**
+     * Matches every entity.
+     */
+    record All() implements TagQuery {}
+
+    /**
+     * Matches no entity.
+     */
+    record None() implements TagQuery {}
+}
@@ -2,153 +2,383 @@ package org.amoseman.tagsystem.backend.resources;
 
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.annotation.Timed;
 import com.google.common.collect.ImmutableList;
 import io.dropwizard.auth.Auth;
 import jakarta.annotation.security.PermitAll;
 import jakarta.ws.rs.*;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.StreamingOutput;
+import org.amoseman.tagsystem.backend.audit.AuditLog;
 import org.amoseman.tagsystem.backend.authentication.User;
 import org.amoseman.tagsystem.backend.dao.EntityDAO;
+import org.amoseman.tagsystem.backend.dao.TaggingOutcome;
 import org.amoseman.tagsystem.backend.exception.entity.EntityNotOwnedException;
 import org.amoseman.tagsystem.backend.exception.entity.TagAlreadyOnEntityException;
+import org.amoseman.tagsystem.backend.exception.query.InvalidQueryException;
+import org.amoseman.tagsystem.backend.pojo.EntityPage;
 import org.amoseman.tagsystem.backend.pojo.EntityRetrievalRequest;
+import org.amoseman.tagsystem.backend.pojo.TaggingResult;
+import org.amoseman.tagsystem.backend.query.QueryParser;
+import org.amoseman.tagsystem.backend.query.TagQuery;
 import org.amoseman.tagsystem.backend.dao.RetrievalOperator;
 import org.amoseman.tagsystem.backend.exception.entity.EntityDoesNotExistException;
 import org.amoseman.tagsystem.backend.exception.tag.TagDoesNotExistException;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
 import java.util.Locale;
-import java.util.logging.Logger;
+import java.util.Map;
 
 @Path("/entities")
 @Produces(MediaType.APPLICATION_JSON)
 public class EntityResource {
+    private static final int MAX_BATCH_SIZE = 10_000_000;
+    private static final int CREATION_CHUNK_SIZE = 10_000;
+    private static final int MAX_PAGE_SIZE = 10_000;
     private final EntityDAO entityDAO;
     private final Meter meter;
-    private final Logger logger;
+    private final AuditLog audit;
 
-    public EntityResource(EntityDAO entityDAO, MetricRegistry metrics) {
+    public EntityResource(EntityDAO entityDAO, AuditLog audit, MetricRegistry metrics) {
         this.entityDAO = entityDAO;
         this.meter = metrics.meter("entity-requests");
-        this.logger = Logger.getGlobal();
+        this.audit = audit;
     }
 
     @POST
+    @Timed
     @PermitAll
     public Response createEntity(@Auth User user) {
         meter.mark();
         String uuid = entityDAO.create(user.getName());
-        logger.info(String.format("User %s created entity %s", user.getName(), uuid));
+        audit.info("User %s created entity %s", user.getName(), uuid);
         return Response.ok(uuid).build();
     }
 
+    @POST
+    @Timed
+    @Path("/batch")
+    @PermitAll
+    public Response createEntities(@Auth User user, @QueryParam("count") int count, @QueryParam("tag") List<String> tags) {
+        meter.mark();
+        if (count < 1 || count > MAX_BATCH_SIZE) {
+            audit.info("User %s failed to create %d entities as the count is out of range", user.getName(), count);
+            return Response.status(Response.Status.BAD_REQUEST.getStatusCode(), String.format("count must be between 1 and %d", MAX_BATCH_SIZE)).build();
+        }
+        // the first chunk is created up front, so that invalid tags are reported before streaming begins
+        ImmutableList<String> first;
+        try {
+            first = entityDAO.create(user.getName(), Math.min(count, CREATION_CHUNK_SIZE), tags);
+        }
+        catch (TagDoesNotExistException e) {
+            audit.info("User %s failed to create %d entities as a tag does not exist", user.getName(), count);
+            return Response.status(Response.Status.BAD_REQUEST.getStatusCode(), e.getMessage()).build();
+        }
+        // each chunk is committed before its UUIDs are written, so a creation which fails partway, or whose client
+        // disconnects, keeps the entities written so far; a failure ends the array with an error in place of a UUID,
+        // so that the client still receives valid JSON listing every entity created
+        StreamingOutput output = stream -> {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+            writer.write('[');
+            ImmutableList<String> chunk = first;
+            int created = 0;
+            String error = null;
+            while (true) {
+                for (String uuid : chunk) {
+                    if (0 < created) {
+                        writer.write(',');
+                    }
+                    writer.write('"');
+                    writer.write(uuid);
+                    writer.write('"');
+                    created++;
+                }
+                writer.flush();
+                if (created >= count) {
+                    break;
+                }
+                try {
+                    chunk = entityDAO.create(user.getName(), Math.min(count - created, CREATION_CHUNK_SIZE), tags);
+                }
+                catch (TagDoesNotExistException e) {
+                    audit.info("User %s stopped creating entities after %d as a tag was deleted", user.getName(), created);
+                    error = "a tag was deleted";
+                    break;
+                }
+                catch (RuntimeException e) {
+                    audit.info("User %s stopped creating entities after %d as a chunk failed", user.getName(), created);
+                    error = "failed to create entities";
+                    break;
+                }
+            }
+            if (null != error) {
+                writer.write(",{\"error\":\"");
+                writer.write(error);
+                writer.write("\"}");
+            }
+            writer.write(']');
+            writer.flush();
+            audit.info("User %s created %d entities", user.getName(), created);
+        };
+        return Response.ok(output, MediaType.APPLICATION_JSON).build();
+    }
+
     @DELETE
+    @Timed
     @Path("/{uuid}")
     @PermitAll
     public Response deleteEntity(@Auth User user, @PathParam("uuid") String uuid) {
         meter.mark();
         try {
             entityDAO.remove(user.getName(), uuid);
-            logger.info(String.format("User %s removed entity %s", user.getName(), uuid));
+            audit.info("User %s removed entity %s", user.getName(), uuid);
             return Response.ok().build();
         }
         catch (EntityDoesNotExistException e) {
-            logger.info(String.format("User %s failed to remove entity %s as it does not exist", user.getName(), uuid));
+            audit.info("User %s failed to remove entity %s as it does not exist", user.getName(), uuid);
             return Response.status(Response.Status.BAD_REQUEST.getStatusCode(), "entity does not exist").build();
         }
         catch (EntityNotOwnedException e) {
-            logger.info(String.format("User %s failed to remove entity %s as they do not own it", user.getName(), uuid));
+            audit.info("User %s failed to remove entity %s as they do not own it", user.getName(), uuid);
             return Response.status(Response.Status.UNAUTHORIZED.getStatusCode()).build();
         }
     }
 
 
     @GET
+    @Timed
     @PermitAll
     @Consumes(MediaType.APPLICATION_JSON)
     public Response retrieve(@Auth User user, EntityRetrievalRequest request) {
         meter.mark();
-        RetrievalOperator operator;
-        String op = request.getOperator().toUpperCase(Locale.ROOT);
-        switch (op) {
-            case "UNION" -> operator = RetrievalOperator.UNION;
-            case "INTERSECTION" -> operator = RetrievalOperator.INTERSECTION;
-            default -> {
-                logger.info(String.format("User %s failed to retrieve using the invalid operator %s", user.getName(), op));
-                return Response.status(Response.Status.BAD_REQUEST.getStatusCode(), "invalid select operator").build();
-            }
+        RetrievalOperator operator = operator(request.getOperator());
+        if (null == operator) {
+            audit.info("User %s failed to retrieve using the invalid operator %s", user.getName(), request.getOperator());
+            return Response.status(Response.Status.BAD_REQUEST.getStatusCode(), "invalid select operator").build();
+        }
+        ImmutableList<String> tags = ImmutableList.copyOf(request.getTags());
+        if (request.isStream()) {
+            return stream(user, operator, tags);
+        }
+        if (null != request.getLimit()) {
+            return page(user, operator, tags, request.getLimit(), request.getCursor());
         }
-        ImmutableList<String> result = entityDAO.retrieve(user.getName(), operator, ImmutableList.copyOf(request.getTags()));
-        logger.info(String.format("User %s retrieved %d entities", user.getName(), result.size()));
+        ImmutableList<String> result = entityDAO.retrieve(user.getName(), operator, tags);
+        audit.info("User %s retrieved %d entities", user.getName(), result.size());
         return Response.ok(result).build();
     }
 
+    @GET
+    @Timed
+    @Path("/query")
+    @PermitAll
+    public Response query(@Auth User user, @QueryParam("q") String q) {
+        meter.mark();
+        if (null == q) {
+            audit.info("User %s failed to query as no query was provided", user.getName());
+            return Response.status(Response.Status.BAD_REQUEST.getStatusCode(), "no query provided").build();
+        }
+        TagQuery query;
+        try {
+            query = QueryParser.parse(q);
+        }
+        catch (InvalidQueryException e) {
+            audit.info("User %s failed to query using the invalid query %s", user.getName(), q);
+            return Response.status(Response.Status.BAD_REQUEST.getStatusCode(), e.getMessage()).build();
+        }
+        ImmutableList<String> result = entityDAO.query(user.getName(), query);
+        audit.info("User %s queried %d entities", user.getName(), result.size());
+        return Response.ok(result).build();
+    }
+
+    @GET
+    @Timed
+    @Path("/count")
+    @PermitAll
+    @Consumes(MediaType.APPLICATION_JSON)
+    public Response count(@Auth User user, EntityRetrievalRequest request) {
+        meter.mark();
+        RetrievalOperator operator = operator(request.getOperator());
+        if (null == operator) {
+            audit.info("User %s failed to count using the invalid operator %s", user.getName(), request.getOperator());
+            return Response.status(Response.Status.BAD_REQUEST.getStatusCode(), "invalid select operator").build();
+        }
+        int count = entityDAO.count(user.getName(), operator, ImmutableList.copyOf(request.getTags()));
+        audit.info("User %s counted %d entities", user.getName(), count);
+        return Response.ok(count).build();
+    }
+
+    @GET
+    @Timed
+    @Path("/exists")
+    @PermitAll
+    @Consumes(MediaType.APPLICATION_JSON)
+    public Response exists(@Auth User user, EntityRetrievalRequest request) {
+        meter.mark();
+        RetrievalOperator operator = operator(request.getOperator());
+        if (null == operator) {
+            audit.info("User %s failed to check existence using the invalid operator %s", user.getName(), request.getOperator());
+            return Response.status(Response.Status.BAD_REQUEST.getStatusCode(), "invalid select operator").build();
+        }
+        boolean exists = entityDAO.exists(user.getName(), operator, ImmutableList.copyOf(request.getTags()));
+        audit.info("User %s checked whether any entities exist (%b)", user.getName(), exists);
+        return Response.ok(exists).build();
+    }
+
+    /**
+     * Parse a retrieval operator.
+     * @param operator the name of the operator, in any case.
+     * @return the operator, or null if invalid.
+     */
+    private static RetrievalOperator operator(String operator) {
+        return switch (operator.toUpperCase(Locale.ROOT)) {
+            case "UNION" -> RetrievalOperator.UNION;
+            case "INTERSECTION" -> RetrievalOperator.INTERSECTION;
+            default -> null;
+        };
+    }
+
+    private Response page(User user, RetrievalOperator operator, ImmutableList<String> tags, int limit, String cursor) {
+        if (limit < 1 || limit > MAX_PAGE_SIZE) {
+            audit.info("User %s failed to retrieve a page of %d entities as the limit is out of range", user.getName(), limit);
+            return Response.status(Response.Status.BAD_REQUEST.getStatusCode(), String.format("limit must be between 1 and %d", MAX_PAGE_SIZE)).build();
+        }
+        EntityPage page;
+        try {
+            page = entityDAO.retrieve(user.getName(), operator, tags, cursor, limit);
+        }
+        catch (IllegalArgumentException e) {
+            audit.info("User %s failed to retrieve a page of entities as the cursor is invalid", user.getName());
+            return Response.status(Response.Status.BAD_REQUEST.getStatusCode(), "invalid cursor").build();
+        }
+        audit.info("User %s retrieved a page of %d entities", user.getName(), page.entities().size());
+        return Response.ok(page).build();
+    }
+
+    private Response stream(User user, RetrievalOperator operator, ImmutableList<String> tags) {
+        StreamingOutput output = stream -> {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+            writer.write('[');
+            int[] count = {0};
+            try {
+                entityDAO.retrieveEach(user.getName(), operator, tags, uuid -> {
+                    try {
+                        if (0 < count[0]) {
+                            writer.write(',');
+                        }
+                        writer.write('"');
+                        writer.write(uuid);
+                        writer.write('"');
+                        count[0]++;
+                    }
+                    catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            }
+            catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            writer.write(']');
+            writer.flush();
+            audit.info("User %s streamed %d entities", user.getName(), count[0]);
+        };
+        return Response.ok(output, MediaType.APPLICATION_JSON).build();
+    }
+
     @POST
+    @Timed
     @Path("/{uuid}/{tag}")
     public Response addTag(@Auth User user, @PathParam("uuid") String uuid, @PathParam("tag") String tag) {
         meter.mark();
         try {
             entityDAO.addTag(user.getName(), uuid, tag);
-            logger.info(String.format("User %s added tag %s to entity %s", user.getName(), tag, uuid));
+            audit.info("User %s added tag %s to entity %s", user.getName(), tag, uuid);
             return Response.ok().build();
         }
         catch (TagDoesNotExistException e) {
-            logger.info(String.format("User %s failed to add tag %s to entity %s as the tag does not exist", user.getName(), tag, uuid));
+            audit.info("User %s failed to add tag %s to entity %s as the tag does not exist", user.getName(), tag, uuid);
             return Response.status(Response.Status.BAD_REQUEST.getStatusCode(), String.format("tag %s does not exist", tag)).build();
         }
         catch (EntityNotOwnedException e) {
-            logger.info(String.format("User %s failed to add tag %s to entity %s as they do not own the entity", user.getName(), tag, uuid));
+            audit.info("User %s failed to add tag %s to entity %s as they do not own the entity", user.getName(), tag, uuid);
             return Response.status(Response.Status.UNAUTHORIZED).build();
         }
         catch (EntityDoesNotExistException e) {
-            logger.info(String.format("User %s failed to add tag %s to entity %s as the entity does not exist", user.getName(), tag, uuid));
+            audit.info("User %s failed to add tag %s to entity %s as the entity does not exist", user.getName(), tag, uuid);
             return Response.status(Response.Status.BAD_REQUEST.getStatusCode(), String.format("entity %s does not exist", uuid)).build();
         }
         catch (TagAlreadyOnEntityException e) {
-            logger.info(String.format("User %s failed to add tag %s to entity %s the entity already has the tag", user.getName(), tag, uuid));
+            audit.info("User %s failed to add tag %s to entity %s the entity already has the tag", user.getName(), tag, uuid);
             return Response.status(Response.Status.BAD_REQUEST.getStatusCode(), String.format("entity %s already has %s tag", uuid, tag)).build();
         }
     }
 
+    @POST
+    @Timed
+    @Path("/tags")
+    @PermitAll
+    @Consumes(MediaType.APPLICATION_JSON)
+    public Response addTags(@Auth User user, Map<String, List<String>> tags) {
+        meter.mark();
+        if (null == tags) {
+            audit.info("User %s failed to add tags as none were provided", user.getName());
+            return Response.status(Response.Status.BAD_REQUEST.getStatusCode(), "no tags provided").build();
+        }
+        ImmutableList<TaggingResult> results = entityDAO.addTags(user.getName(), tags);
+        long added = results.stream().filter(result -> TaggingOutcome.ADDED == result.outcome()).count();
+        audit.info("User %s added %d of %d tags to %d entities", user.getName(), added, results.size(), tags.size());
+        return Response.ok(results).build();
+    }
+
     @DELETE
+    @Timed
     @Path("/{uuid}/{tag}")
     public Response removeTag(@Auth User user, @PathParam("uuid") String uuid, @PathParam("tag") String tag) {
         meter.mark();
         try {
             entityDAO.removeTag(user.getName(), uuid, tag);
-            logger.info(String.format("User %s removed tag %s from entity %s", user.getName(), tag, uuid));
+            audit.info("User %s removed tag %s from entity %s", user.getName(), tag, uuid);
             return Response.ok().build();
         }
         catch (TagDoesNotExistException e) {
-            logger.info(String.format("User %s failed to remove tag %s from entity %s as the tag does not exist", user.getName(), tag, uuid));
+            audit.info("User %s failed to remove tag %s from entity %s as the tag does not exist", user.getName(), tag, uuid);
             return Response.status(Response.Status.BAD_REQUEST.getStatusCode(), "tag does not exist").build();
         }
         catch (EntityNotOwnedException e) {
-            logger.info(String.format("User %s failed to remove tag %s from entity %s as they do not own the entity", user.getName(), tag, uuid));
+            audit.info("User %s failed to remove tag %s from entity %s as they do not own the entity", user.getName(), tag, uuid);
             return Response.status(Response.Status.UNAUTHORIZED).build();
         }
         catch (EntityDoesNotExistException e) {
-            logger.info(String.format("User %s failed to remove tag %s from entity %s as entity does not exist", user.getName(), tag, uuid));
+            audit.info("User %s failed to remove tag %s from entity %s as entity does not exist", user.getName(), tag, uuid);
             return Response.status(Response.Status.BAD_REQUEST.getStatusCode(), "entity does not exist").build();
         }
     }
 
     @GET
+    @Timed
     @Path("/{uuid}")
     @PermitAll
     public Response getTags(@Auth User user, @PathParam("uuid") String uuid) {
         meter.mark();
         try {
             ImmutableList<String> tags = entityDAO.getTags(user.getName(), uuid);
-            logger.info(String.format("User %s retrieved tags for entity %s", user.getName(), uuid));
+            audit.info("User %s retrieved tags for entity %s", user.getName(), uuid);
             return Response.ok(tags).build();
         }
         catch (EntityDoesNotExistException e) {
-            logger.info(String.format("User %s failed to retrieve tags for entity %s as it does not exist", user.getName(), uuid));
+            audit.info("User %s failed to retrieve tags for entity %s as it does not exist", user.getName(), uuid);
             return Response.status(Response.Status.BAD_REQUEST.getStatusCode(), "entity does not exist").build();
         }
         catch (EntityNotOwnedException e) {
-            logger.info(String.format("User %s failed to retrieve tags for entity %s as they do not own it", user.getName(), uuid));
+            audit.info("User %s failed to retrieve tags for entity %s as they do not own it", user.getName(), uuid);
             return Response.status(Response.Status.UNAUTHORIZED.getStatusCode()).build();
         }
     }
@@ -0,0 +1,48 @@
+package org.amoseman.tagsystem.backend.resources;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.annotation.Timed;
+import io.dropwizard.auth.Auth;
+import jakarta.annotation.security.PermitAll;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.Context;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import jakarta.ws.rs.core.SecurityContext;
+import org.amoseman.tagsystem.backend.audit.AuditLog;
+import org.amoseman.tagsystem.backend.authentication.TokenAuthenticator;
+import org.amoseman.tagsystem.backend.authentication.User;
+import org.amoseman.tagsystem.backend.pojo.LoginResponse;
+
+
+@Path("/login")
+@Produces(MediaType.APPLICATION_JSON)
+public class LoginResource {
+    private final TokenAuthenticator tokenAuthenticator;
+    private final Meter meter;
+    private final AuditLog audit;
+
+    public LoginResource(TokenAuthenticator tokenAuthenticator, AuditLog audit, MetricRegistry metrics) {
+        this.tokenAuthenticator = tokenAuthenticator;
+        this.meter = metrics.meter("login-requests");
+        this.audit = audit;
+    }
+
+    @POST
+    @Timed
+    @PermitAll
+    public Response login(@Auth User user, @Context SecurityContext context) {
+        meter.mark();
+        // a token may only be exchanged for a password, so that sessions cannot be extended indefinitely
+        if (!SecurityContext.BASIC_AUTH.equals(context.getAuthenticationScheme())) {
+            audit.info("User %s failed to log in as they did not provide their password", user.getName());
+            return Response.status(Response.Status.BAD_REQUEST.getStatusCode(), "login requires basic authentication").build();
+        }
+        LoginResponse response = tokenAuthenticator.issue(user);
+        audit.info("User %s logged in", user.getName());
+        return Response.ok(response).build();
+    }
+}
@@ -2,131 +2,203 @@ package org.amoseman.tagsystem.backend.resources;
 
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
-import com.google.common.collect.ImmutableList;
+import com.codahale.metrics.annotation.Timed;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.hash.Hashing;
 import io.dropwizard.auth.Auth;
 import jakarta.annotation.security.PermitAll;
 import jakarta.annotation.security.RolesAllowed;
 import jakarta.ws.rs.*;
+import jakarta.ws.rs.core.Context;
+import jakarta.ws.rs.core.EntityTag;
 import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Request;
 import jakarta.ws.rs.core.Response;
+import org.amoseman.tagsystem.backend.audit.AuditLog;
 import org.amoseman.tagsystem.backend.authentication.Roles;
 import org.amoseman.tagsystem.backend.authentication.User;
 import org.amoseman.tagsystem.backend.dao.TagDAO;
+import org.amoseman.tagsystem.backend.dao.TagStatistics;
 import org.amoseman.tagsystem.backend.exception.tag.*;
+import org.amoseman.tagsystem.backend.pojo.TagSnapshot;
+import org.amoseman.tagsystem.backend.pojo.TagStats;
 
-import java.util.logging.Logger;
 
 @Path("/tags")
 @Produces(MediaType.APPLICATION_JSON)
 public class TagResource {
     private static final Response TAG_DNE = Response.status(Response.Status.BAD_REQUEST.getStatusCode(), "tag does not exist").build();
     private final TagDAO tagDAO;
+    private final TagStatistics statistics;
+    private final ObjectMapper mapper;
     private final Meter meter;
-    private final Logger logger;
+    private final AuditLog audit;
+    private volatile Listing listing;
 
-    public TagResource(TagDAO tagDAO, MetricRegistry metrics) {
+    public TagResource(TagDAO tagDAO, TagStatistics statistics, ObjectMapper mapper, AuditLog audit, MetricRegistry metrics) {
         this.tagDAO = tagDAO;
+        this.statistics = statistics;
+        this.mapper = mapper;
+        this.listing = null;
         this.meter = metrics.meter("tag-requests");
-        this.logger = Logger.getGlobal();
+        this.audit = audit;
     }
 
     @POST
+    @Timed
     @Path("/{name}")
     @RolesAllowed({Roles.ADMIN})
     public Response createTag(@Auth User user, @PathParam("name") String name) {
         meter.mark();
         try {
             tagDAO.create(name);
-            logger.info(String.format("User %s created tag %s", user.getName(), name));
+            audit.info("User %s created tag %s", user.getName(), name);
             return Response.ok().build();
         }
         catch (NameInUseException e) {
-            logger.info(String.format("User %s failed to create tag %s as it already exists", user.getName(), name));
+            audit.info("User %s failed to create tag %s as it already exists", user.getName(), name);
             return Response.status(Response.Status.BAD_REQUEST.getStatusCode(), "tag name already in use").build();
         }
     }
 
     @DELETE
+    @Timed
     @Path("/{name}")
     @RolesAllowed({Roles.ADMIN})
     public Response deleteTag(@Auth User user, @PathParam("name") String name) {
         meter.mark();
         try {
             tagDAO.delete(name);
-            logger.info(String.format("User %s deleted tag %s", user.getName(), name));
+            audit.info("User %s deleted tag %s", user.getName(), name);
             return Response.ok().build();
         }
         catch (TagDoesNotExistException e) {
-            logger.info(String.format("User %s failed to delete tag %s as it does not exist", user.getName(), name));
+            audit.info("User %s failed to delete tag %s as it does not exist", user.getName(), name);
             return TAG_DNE;
         }
     }
 
     @POST
+    @Timed
     @Path("/{parent}/{child}")
     @RolesAllowed({Roles.ADMIN})
     public Response addChild(@Auth User user, @PathParam("parent") String parent, @PathParam("child") String child) {
         meter.mark();
         try {
             tagDAO.addChild(parent, child);
-            logger.info(String.format("User %s set tag %s to inherit tag %s", user.getName(), child, parent));
+            audit.info("User %s set tag %s to inherit tag %s", user.getName(), child, parent);
             return Response.ok().build();
         }
         catch (TagDoesNotExistException e) {
-            logger.info(String.format("User %s failed to set tag %s to inherit tag %s as one of the tags does not exist", user.getName(), child, parent));
+            audit.info("User %s failed to set tag %s to inherit tag %s as one of the tags does not exist", user.getName(), child, parent);
             return TAG_DNE;
         }
         catch (TagInheritanceLoopException e) {
-            logger.info(String.format("User %s failed to set tag %s to inherit tag %s as it would cause an inheritance loop", user.getName(), child, parent));
+            audit.info("User %s failed to set tag %s to inherit tag %s as it would cause an inheritance loop", user.getName(), child, parent);
             return Response.status(Response.Status.BAD_REQUEST.getStatusCode(), "creating this relationship would cause a tag inheritance loop").build();
         }
         catch (TagIsAlreadyChildException e) {
-            logger.info(String.format("User %s set tag %s to inherit tag %s as the relationship already exists", user.getName(), child, parent));
+            audit.info("User %s set tag %s to inherit tag %s as the relationship already exists", user.getName(), child, parent);
             return Response.status(Response.Status.BAD_REQUEST.getStatusCode(), "tag is already child").build();
         }
     }
 
     @DELETE
+    @Timed
     @Path("/{parent}/{child}")
     @RolesAllowed({Roles.ADMIN})
     public Response removeChild(@Auth User user, @PathParam("name") String parent, @PathParam("child") String child) {
         meter.mark();
         try {
-            logger.info(String.format("User %s removed inheritance of tag %s of tag %s", user.getName(), child, parent));
+            audit.info("User %s removed inheritance of tag %s of tag %s", user.getName(), child, parent);
             tagDAO.removeChild(parent, child);
             return Response.ok().build();
         }
         catch (TagDoesNotExistException e) {
-            logger.info(String.format("User %s failed to remove inheritance of tag %s of tag %s as one of the tags does not exist", user.getName(), child, parent));
+            audit.info("User %s failed to remove inheritance of tag %s of tag %s as one of the tags does not exist", user.getName(), child, parent);
             return TAG_DNE;
         }
         catch (TagIsNotChildException e) {
-            logger.info(String.format("User %s failed to remove inheritance of tag %s of tag %s as the relationship does not exist", user.getName(), child, parent));
+            audit.info("User %s failed to remove inheritance of tag %s of tag %s as the relationship does not exist", user.getName(), child, parent);
             return Response.status(Response.Status.BAD_REQUEST.getStatusCode(), "passed child tag is not child of passed parent tag").build();
         }
     }
 
     @GET
+    @Timed
     @Path("/{name}")
     @PermitAll
     public Response getChildren(@Auth User user, @PathParam("name") String name) {
         meter.mark();
         try {
-            logger.info(String.format("User %s received the tags that inherit tag %s", user.getName(), name));
+            audit.info("User %s received the tags that inherit tag %s", user.getName(), name);
             return Response.ok(tagDAO.getChildren(name)).build();
         }
         catch (TagDoesNotExistException e) {
-            logger.info(String.format("User %s failed to receive the tags that inherit tag %s as it does not exist", user.getName(), name));
+            audit.info("User %s failed to receive the tags that inherit tag %s as it does not exist", user.getName(), name);
             return TAG_DNE;
         }
     }
 
     @GET
+    @Timed
+    @Path("/{name}/stats")
     @PermitAll
-    public Response list(@Auth User user) {
+    public Response getStats(@Auth User user, @PathParam("name") String name) {
         meter.mark();
-        ImmutableList<String> tags = tagDAO.listAll();
-        logger.info(String.format("User %s requested all tags", user.getName()));
-        return Response.ok(tags).build();
+        if (!tagDAO.exists(name)) {
+            audit.info("User %s failed to receive the statistics of tag %s as it does not exist", user.getName(), name);
+            return TAG_DNE;
+        }
+        TagStats stats = new TagStats(
+                name,
+                statistics.count(name),
+                statistics.owners(name),
+                statistics.count(user.getName(), name)
+        );
+        audit.info("User %s received the statistics of tag %s", user.getName(), name);
+        return Response.ok(stats).build();
+    }
+
+    @GET
+    @Timed
+    @PermitAll
+    public Response list(@Auth User user, @Context Request request) throws JsonProcessingException {
+        meter.mark();
+        Listing current = listing();
+        audit.info("User %s requested all tags", user.getName());
+        Response.ResponseBuilder unchanged = request.evaluatePreconditions(current.tag());
+        if (null != unchanged) {
+            return unchanged.build();
+        }
+        return Response.ok(current.body()).tag(current.tag()).build();
+    }
+
+    /**
+     * Get the serialized listing of the current snapshot of the tags, serializing it if the tags have changed.
+     * @return the listing.
+     * @throws JsonProcessingException if the tags cannot be serialized.
+     */
+    private Listing listing() throws JsonProcessingException {
+        TagSnapshot snapshot = tagDAO.snapshot();
+        Listing current = listing;
+        if (null != current && current.version() == snapshot.version()) {
+            return current;
+        }
+        byte[] body = mapper.writeValueAsBytes(snapshot.tags());
+        // the tag is derived from the content, so that it remains valid across restarts
+        EntityTag tag = new EntityTag(Hashing.sha256().hashBytes(body).toString());
+        current = new Listing(snapshot.version(), body, tag);
+        listing = current;
+        return current;
     }
+
+    /**
+     * A serialized snapshot of the tags.
+     * @param version the version of the snapshot.
+     * @param body the tags, serialized.
+     * @param tag the entity tag of the serialized tags.
+     */
+    private record Listing(long version, byte[] body, EntityTag tag) {}
 }
@@ -2,12 +2,14 @@ package org.amoseman.tagsystem.backend.resources;
 
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.annotation.Timed;
 import io.dropwizard.auth.Auth;
 import jakarta.annotation.security.PermitAll;
 import jakarta.annotation.security.RolesAllowed;
 import jakarta.ws.rs.*;
 import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
+import org.amoseman.tagsystem.backend.audit.AuditLog;
 import org.amoseman.tagsystem.backend.authentication.Roles;
 import org.amoseman.tagsystem.backend.authentication.User;
 import org.amoseman.tagsystem.backend.dao.UserDAO;
@@ -16,50 +18,59 @@ import org.amoseman.tagsystem.backend.exception.user.UsernameAlreadyInUseExcepti
 import org.amoseman.tagsystem.backend.service.UserService;
 import org.amoseman.tagsystem.backend.pojo.UserCreationRequest;
 
-import java.util.logging.Logger;
+import java.util.concurrent.RejectedExecutionException;
+
 
 @Path("/users")
 @Produces(MediaType.APPLICATION_JSON)
 public class UserResource {
+    private static final long RETRY_AFTER_SECONDS = 1;
     private final UserService userService;
     private final UserDAO userDAO;
     private final Meter meter;
-    private final Logger logger;
+    private final AuditLog audit;
 
-    public UserResource(UserService userService, UserDAO userDAO, MetricRegistry metrics) {
+    public UserResource(UserService userService, UserDAO userDAO, AuditLog audit, MetricRegistry metrics) {
         this.userService = userService;
         this.userDAO = userDAO;
         this.meter = metrics.meter("user-requests");
-        this.logger = Logger.getGlobal();
+        this.audit = audit;
     }
 
     @POST
+    @Timed
     public Response request(UserCreationRequest request) {
         meter.mark();
         userService.request(request);
-        logger.info(String.format("Request for account creation of %s", request.username()));
+        audit.info("Request for account creation of %s", request.username());
         return Response.accepted().build();
     }
 
     @POST
+    @Timed
     @Path("/{username}")
     @RolesAllowed({Roles.ADMIN})
     public Response accept(@Auth User user, @PathParam("username") String username) {
         meter.mark();
         try {
             if (userService.acceptRequest(username)) {
-                logger.info(String.format("Admin %s accepted account creation request of %s", user.getName(), username));
+                audit.info("Admin %s accepted account creation request of %s", user.getName(), username);
                 return Response.ok().build();
             }
         } catch (UsernameAlreadyInUseException e) {
-            logger.info(String.format("Admin %s failed to accepted account creation request of %s as the username is already in use", user.getName(), username));
+            audit.info("Admin %s failed to accepted account creation request of %s as the username is already in use", user.getName(), username);
             return Response.status(Response.Status.BAD_REQUEST.getStatusCode(), String.format("the username %s is already in use", username)).build();
         }
-        logger.info(String.format("Admin %s failed to accepted account creation request of %s as there is no corresponding request", user.getName(), username));
+        catch (RejectedExecutionException e) {
+            audit.info("Admin %s failed to accepted account creation request of %s as hashing is too busy", user.getName(), username);
+            throw new ServiceUnavailableException(RETRY_AFTER_SECONDS);
+        }
+        audit.info("Admin %s failed to accepted account creation request of %s as there is no corresponding request", user.getName(), username);
         return Response.status(Response.Status.BAD_REQUEST.getStatusCode(), String.format("no request corresponding to the provided username %s", username)).build();
     }
 
     @DELETE
+    @Timed
     @Path("/{username}")
     @PermitAll
     public Response delete(@Auth User user, @PathParam("username") String username) {
@@ -69,20 +80,21 @@ public class UserResource {
         meter.mark();
         try {
             userDAO.removeUser(username);
-            logger.info(String.format("Admin %s deleted account %s", user.getName(), username));
+            audit.info("Admin %s deleted account %s", user.getName(), username);
             return Response.ok().build();
         }
         catch (UserDoesNotExistException e) {
-            logger.info(String.format("Admin %s failed to delete account %s as it does not exist", user.getName(), username));
+            audit.info("Admin %s failed to delete account %s as it does not exist", user.getName(), username);
             return Response.status(Response.Status.BAD_REQUEST.getStatusCode(), String.format("%s does not exist", username)).build();
         }
     }
 
     @GET
+    @Timed
     @RolesAllowed({Roles.ADMIN})
     public Response listRequests(@Auth User user) {
         meter.mark();
-        logger.info(String.format("Admin %s requested a list of all pending account creation requests", user.getName()));
+        audit.info("Admin %s requested a list of all pending account creation requests", user.getName());
         return Response.ok(userService.listRequests()).build();
     }
 }
@@ -7,6 +7,7 @@ import org.amoseman.tagsystem.backend.pojo.UserCreationRequest;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
 
 public class UserService {
     private final UserDAO userDAO;
@@ -34,7 +35,14 @@ public class UserService {
             return false;
         }
         String password = requests.remove(username);
-        userDAO.addUser(username, password);
+        try {
+            userDAO.addUser(username, password);
+        }
+        catch (RejectedExecutionException e) {
+            // kept, so that the request can be accepted again once hashing is less busy
+            requests.putIfAbsent(username, password);
+            throw e;
+        }
         return true;
     }
 }
@@ -0,0 +1,71 @@
+package org.amoseman.tagsystem.backend.audit;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AuditLogTest {
+    private static final class ListSink implements AuditSink {
+        private final List<String> messages = new ArrayList<>();
+
+        @Override
+        public void write(AuditEvent event) {
+            if (event.message().contains("fail")) {
+                throw new IllegalStateException();
+            }
+            messages.add(event.message());
+        }
+    }
+
+    @Test
+    void dropped() throws Exception {
+        ListSink sink = new ListSink();
+        MetricRegistry metrics = new MetricRegistry();
+        AuditLog audit = new AuditLog(sink, Level.INFO, 4, metrics);
+        // published before the log is started, so that nothing is drained until the buffer is full
+        for (int i = 0; i < 6; i++) {
+            audit.info("event %d", i);
+        }
+        assertEquals(2, metrics.counter("audit-dropped").getCount());
+        audit.start();
+        audit.stop();
+        assertEquals(List.of("event 0", "event 1", "event 2", "event 3"), sink.messages);
+    }
+
+    @Test
+    void drained() throws Exception {
+        ListSink sink = new ListSink();
+        MetricRegistry metrics = new MetricRegistry();
+        AuditLog audit = new AuditLog(sink, Level.INFO, 1024, metrics);
+        audit.start();
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            audit.info("event %d", i);
+            expected.add(String.format("event %d", i));
+        }
+        audit.info("event %s", "fail");
+        audit.stop();
+        // every event published before stopping is written, in order, besides the one the sink failed on
+        assertEquals(expected, sink.messages);
+        assertEquals(1, metrics.counter("audit-dropped").getCount());
+    }
+
+    @Test
+    void disabled() throws Exception {
+        ListSink sink = new ListSink();
+        MetricRegistry metrics = new MetricRegistry();
+        AuditLog audit = new AuditLog(sink, Level.WARNING, 4, metrics);
+        assertFalse(audit.isEnabled(Level.INFO));
+        assertTrue(audit.isEnabled(Level.SEVERE));
+        audit.start();
+        audit.info("event %d", 0);
+        audit.stop();
+        assertTrue(sink.messages.isEmpty());
+        assertEquals(0, metrics.counter("audit-dropped").getCount());
+    }
+}
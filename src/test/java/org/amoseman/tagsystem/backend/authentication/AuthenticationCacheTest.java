@@ -0,0 +1,64 @@
+package org.amoseman.tagsystem.backend.authentication;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AuthenticationCacheTest {
+    private static final User ALICE = new User("alice", Set.of(Roles.USER));
+    private static final User BOB = new User("bob", Set.of(Roles.USER));
+
+    private static AuthenticationCache cache() {
+        return new AuthenticationCache(100, Duration.ofMinutes(5), new SecureRandom(), new MetricRegistry());
+    }
+
+    @Test
+    void cached() {
+        AuthenticationCache cache = cache();
+        assertFalse(cache.get("alice", "password").isPresent());
+        cache.put(ALICE, "password", cache.stamp());
+        Optional<User> user = cache.get("alice", "password");
+        assertTrue(user.isPresent());
+        assertSame(ALICE, user.get());
+        assertFalse(cache.get("alice", "another_password").isPresent());
+        assertFalse(cache.get("bob", "password").isPresent());
+    }
+
+    @Test
+    void separated() {
+        // the same bytes split differently between the username and password must not match
+        AuthenticationCache cache = cache();
+        cache.put(new User("ab", Set.of(Roles.USER)), "c", cache.stamp());
+        assertFalse(cache.get("a", "bc").isPresent());
+        assertTrue(cache.get("ab", "c").isPresent());
+    }
+
+    @Test
+    void invalidation() {
+        AuthenticationCache cache = cache();
+        cache.put(ALICE, "password", cache.stamp());
+        cache.put(BOB, "password", cache.stamp());
+        cache.invalidate("alice");
+        assertFalse(cache.get("alice", "password").isPresent());
+        assertTrue(cache.get("bob", "password").isPresent());
+    }
+
+    @Test
+    void stamp() {
+        // an authentication looked up before an invalidation must not be cached after it
+        AuthenticationCache cache = cache();
+        long stamp = cache.stamp();
+        cache.invalidate("alice");
+        cache.put(ALICE, "password", stamp);
+        assertFalse(cache.get("alice", "password").isPresent());
+
+        cache.put(ALICE, "password", cache.stamp());
+        assertTrue(cache.get("alice", "password").isPresent());
+    }
+}
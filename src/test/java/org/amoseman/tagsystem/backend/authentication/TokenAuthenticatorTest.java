@@ -0,0 +1,117 @@
+package org.amoseman.tagsystem.backend.authentication;
+
+import com.codahale.metrics.MetricRegistry;
+import org.amoseman.tagsystem.backend.dao.UserDAO;
+import org.amoseman.tagsystem.backend.dao.sql.DatabaseConnection;
+import org.amoseman.tagsystem.backend.dao.sql.SQLBackend;
+import org.amoseman.tagsystem.backend.dao.sql.SQLTagDAO;
+import org.amoseman.tagsystem.backend.pojo.LoginResponse;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Base64;
+import java.util.Optional;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TokenAuthenticatorTest {
+    private static final byte[] SECRET = "this_is_a_terrible_secret".getBytes(StandardCharsets.UTF_8);
+    private static final Duration LIFETIME = Duration.ofHours(1);
+    private static final Instant NOW = Instant.parse("2024-01-01T00:00:00Z");
+    @TempDir
+    Path directory;
+    private DatabaseConnection connection;
+    private HashingExecutor hashingExecutor;
+    private UserDAO userDAO;
+
+    @BeforeEach
+    void open() throws Exception {
+        connection = DatabaseConnection.generatePooled("jdbc:sqlite:" + directory.resolve("users.db"), 2);
+        SQLBackend backend = new SQLBackend(connection);
+        backend.initializer().init(connection);
+        MetricRegistry metrics = new MetricRegistry();
+        Hasher hasher = new Hasher(24, 16, new SecureRandom(), new Argon2IDConfig(2, 66536, 1));
+        hashingExecutor = new HashingExecutor(hasher, 1, 4, metrics);
+        AuthenticationCache cache = new AuthenticationCache(100, Duration.ofMinutes(5), new SecureRandom(), metrics);
+        SQLTagDAO tagDAO = backend.tagDAO(null, null);
+        userDAO = backend.userDAO(hashingExecutor, backend.entityDAO(tagDAO, null), cache);
+        userDAO.addUser("alice", "password");
+    }
+
+    @AfterEach
+    void close() throws Exception {
+        hashingExecutor.stop();
+        connection.close();
+    }
+
+    private TokenAuthenticator authenticator(Instant now) {
+        return new TokenAuthenticator(userDAO, SECRET, LIFETIME, Clock.fixed(now, ZoneOffset.UTC));
+    }
+
+    private String issue() throws Exception {
+        return authenticator(NOW).issue(userDAO.getUser("alice")).token();
+    }
+
+    @Test
+    void valid() throws Exception {
+        LoginResponse response = authenticator(NOW).issue(userDAO.getUser("alice"));
+        assertEquals(NOW.plus(LIFETIME).getEpochSecond(), response.expires());
+        Optional<User> user = authenticator(NOW).authenticate(response.token());
+        assertTrue(user.isPresent());
+        assertEquals("alice", user.get().getName());
+        assertEquals(Set.of(Roles.USER), user.get().getRoles());
+    }
+
+    @Test
+    void tampered() throws Exception {
+        String token = issue();
+        int dot = token.indexOf('.');
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+
+        byte[] signature = Base64.getUrlDecoder().decode(token.substring(dot + 1));
+        signature[0] ^= 1;
+        assertFalse(authenticator(NOW).authenticate(token.substring(0, dot + 1) + encoder.encodeToString(signature)).isPresent());
+
+        // a longer lifetime, and more roles, signed with the original signature
+        String payload = new String(Base64.getUrlDecoder().decode(token.substring(0, dot)), StandardCharsets.UTF_8);
+        String forged = payload.replaceFirst("\\d+", Long.toString(NOW.plus(LIFETIME.multipliedBy(24)).getEpochSecond()))
+                .replace(Roles.USER, Roles.ADMIN + "," + Roles.USER);
+        assertFalse(authenticator(NOW).authenticate(encoder.encodeToString(forged.getBytes(StandardCharsets.UTF_8)) + token.substring(dot)).isPresent());
+
+        assertFalse(authenticator(NOW).authenticate("no_signature").isPresent());
+        assertFalse(authenticator(NOW).authenticate("*.*").isPresent());
+        assertFalse(new TokenAuthenticator(userDAO, "another_secret".getBytes(StandardCharsets.UTF_8), LIFETIME, Clock.fixed(NOW, ZoneOffset.UTC)).authenticate(token).isPresent());
+    }
+
+    @Test
+    void expired() throws Exception {
+        String token = issue();
+        assertTrue(authenticator(NOW.plus(LIFETIME).minusSeconds(1)).authenticate(token).isPresent());
+        assertFalse(authenticator(NOW.plus(LIFETIME)).authenticate(token).isPresent());
+    }
+
+    @Test
+    void rolesChanged() throws Exception {
+        String token = issue();
+        userDAO.setRole("alice", Roles.ADMIN);
+        assertFalse(authenticator(NOW).authenticate(token).isPresent());
+        assertTrue(authenticator(NOW).authenticate(issue()).isPresent());
+    }
+
+    @Test
+    void removed() throws Exception {
+        String token = issue();
+        userDAO.removeUser("alice");
+        assertFalse(authenticator(NOW).authenticate(token).isPresent());
+    }
+}
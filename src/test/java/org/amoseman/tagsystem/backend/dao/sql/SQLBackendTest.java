@@ -0,0 +1,164 @@
+package org.amoseman.tagsystem.backend.dao.sql;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSetMultimap;
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import org.amoseman.tagsystem.backend.dao.RetrievalOperator;
+import org.amoseman.tagsystem.backend.dao.TagStatistics;
+import org.amoseman.tagsystem.backend.exception.entity.TagAlreadyOnEntityException;
+import org.amoseman.tagsystem.backend.index.TagHierarchyIndex;
+import org.amoseman.tagsystem.backend.pojo.EntityPage;
+import org.jooq.SQLDialect;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SQLBackendTest {
+    private static final int THREADS = 8;
+    @TempDir
+    Path directory;
+
+    private static void exercise(DatabaseConnection connection, TagHierarchyIndex hierarchy) throws Exception {
+        SQLBackend backend = new SQLBackend(connection);
+        backend.initializer().init(connection);
+        assertTrue(backend.initializer().missingIndexes(connection).isEmpty());
+
+        SQLTagDAO tagDAO = backend.tagDAO(hierarchy, null);
+        tagDAO.create("animal");
+        tagDAO.create("mammal");
+        tagDAO.create("feline");
+        tagDAO.addChild("animal", "mammal");
+        tagDAO.addChild("mammal", "feline");
+        SQLEntityDAO entityDAO = backend.entityDAO(tagDAO, hierarchy);
+        TagStatistics statistics = backend.tagStatistics();
+
+        ImmutableList<String> cats = entityDAO.create("alice", 600, List.of("feline"));
+        String dog = entityDAO.create("alice");
+        entityDAO.addTags("alice", Map.of(dog, List.of("animal", "mammal")));
+        entityDAO.create("bob", 3, List.of("animal"));
+
+        assertEquals(601, entityDAO.count("alice", RetrievalOperator.UNION, ImmutableList.of("animal")));
+        assertEquals(List.of("mammal"), entityDAO.getTags("alice", dog));
+        assertEquals(List.of("feline"), entityDAO.getTags("alice", cats.get(0)));
+        assertEquals(600, entityDAO.count("alice", RetrievalOperator.INTERSECTION, ImmutableList.of("mammal", "feline")));
+        assertEquals(0, entityDAO.count("alice", RetrievalOperator.INTERSECTION, ImmutableList.of("mammal", "missing")));
+        assertEquals(0, entityDAO.count("carol", RetrievalOperator.UNION, ImmutableList.of("animal")));
+        List<String> streamed = new ArrayList<>();
+        entityDAO.retrieveEach("alice", RetrievalOperator.UNION, ImmutableList.of("animal"), streamed::add);
+        assertEquals(601, streamed.size());
+        assertEquals(Set.copyOf(entityDAO.retrieve("alice", RetrievalOperator.UNION, ImmutableList.of("animal"))), Set.copyOf(streamed));
+        List<String> paged = new ArrayList<>();
+        String cursor = null;
+        do {
+            EntityPage page = entityDAO.retrieve("alice", RetrievalOperator.UNION, ImmutableList.of("animal"), cursor, 250);
+            paged.addAll(page.entities());
+            cursor = page.cursor();
+        }
+        while (null != cursor);
+        assertEquals(streamed, paged);
+        assertThrows(IllegalArgumentException.class, () -> entityDAO.retrieve("alice", RetrievalOperator.UNION, ImmutableList.of("animal"), "invalid", 250));
+
+        assertEquals(600, statistics.count("alice", "feline"));
+        assertEquals(603, statistics.count("animal") + statistics.count("feline"));
+        assertEquals(1, statistics.owners("animal"));
+
+        entityDAO.remove("alice", dog);
+        entityDAO.removeAll("bob");
+        assertEquals(0, statistics.count("mammal"));
+        assertEquals(0, statistics.count("animal"));
+
+        retrieval(tagDAO, entityDAO);
+        concurrent(entityDAO, statistics);
+        connection.close();
+    }
+
+    /**
+     * Retrieve an entity matched through several tag groups, which is retrieved once by a union, and matched by an
+     * intersection of them.
+     */
+    private static void retrieval(SQLTagDAO tagDAO, SQLEntityDAO entityDAO) throws Exception {
+        tagDAO.create("pet");
+        String pet = entityDAO.create("dave");
+        entityDAO.addTags("dave", Map.of(pet, List.of("feline", "pet")));
+        entityDAO.create("dave", 2, List.of("mammal"));
+
+        ImmutableList<String> union = entityDAO.retrieve("dave", RetrievalOperator.UNION, ImmutableList.of("animal", "mammal", "pet"));
+        assertEquals(3, union.size());
+        assertEquals(3, Set.copyOf(union).size());
+        String parented = entityDAO.create("dave", 1, List.of("feline", "animal", "pet")).get(0);
+        assertEquals(Set.of("feline", "pet"), Set.copyOf(entityDAO.getTags("dave", parented)));
+        entityDAO.remove("dave", parented);
+        assertEquals(List.of(pet), entityDAO.retrieve("dave", RetrievalOperator.INTERSECTION, ImmutableList.of("mammal", "pet")));
+        assertEquals(List.of(pet), entityDAO.retrieve("dave", RetrievalOperator.INTERSECTION, ImmutableList.of("animal", "feline", "pet")));
+        assertEquals(List.of(), entityDAO.retrieve("dave", RetrievalOperator.INTERSECTION, ImmutableList.of("pet", "missing")));
+    }
+
+    /**
+     * Tag the same entities from many threads at once, each replacing the same parents, and check that the counts
+     * still match the tags of the entities.
+     */
+    private static void concurrent(SQLEntityDAO entityDAO, TagStatistics statistics) throws Exception {
+        ImmutableList<String> uuids = entityDAO.create("carol", 20, List.of("animal"));
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int thread = 0; thread < THREADS; thread++) {
+            boolean batched = 0 == thread % 2;
+            futures.add(executor.submit(() -> {
+                for (String uuid : uuids) {
+                    if (batched) {
+                        entityDAO.addTags("carol", Map.of(uuid, List.of("mammal", "feline")));
+                        continue;
+                    }
+                    try {
+                        entityDAO.addTag("carol", uuid, "mammal");
+                    }
+                    catch (TagAlreadyOnEntityException ignored) {
+
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        ImmutableSetMultimap<String, String> tags = entityDAO.getAllTags("carol");
+        for (String tag : List.of("animal", "mammal", "feline")) {
+            long tagged = tags.values().stream().filter(tag::equals).count();
+            assertEquals(tagged, statistics.count("carol", tag), tag);
+        }
+    }
+
+    @Test
+    void sqlite() throws Exception {
+        String url = "jdbc:sqlite:" + directory.resolve("backend.db");
+        exercise(DatabaseConnection.generatePooled(url, 2), new TagHierarchyIndex());
+    }
+
+    @Test
+    void sqliteUnpooled() throws Exception {
+        // every request shares the one connection, so the concurrent transactions must take turns on it
+        String url = "jdbc:sqlite:" + directory.resolve("unpooled.db");
+        exercise(DatabaseConnection.generate(url), new TagHierarchyIndex());
+    }
+
+    @Test
+    void postgres() throws Exception {
+        try (EmbeddedPostgres postgres = EmbeddedPostgres.start()) {
+            String url = postgres.getJdbcUrl("postgres", "postgres");
+            exercise(DatabaseConnection.generatePooled(url, SQLDialect.POSTGRES, "postgres", "postgres", THREADS), null);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package org.amoseman.tagsystem.backend.dao.sql;
+
+import com.codahale.metrics.MetricRegistry;
+import org.amoseman.tagsystem.backend.authentication.Argon2IDConfig;
+import org.amoseman.tagsystem.backend.authentication.AuthenticationCache;
+import org.amoseman.tagsystem.backend.authentication.Hasher;
+import org.amoseman.tagsystem.backend.authentication.HashingExecutor;
+import org.amoseman.tagsystem.backend.authentication.Roles;
+import org.amoseman.tagsystem.backend.dao.UserDAO;
+import org.amoseman.tagsystem.backend.exception.user.UserDoesNotExistException;
+import org.amoseman.tagsystem.backend.exception.user.UsernameAlreadyInUseException;
+import org.amoseman.tagsystem.backend.pojo.UserCredentials;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Set;
+
+import static org.jooq.impl.DSL.field;
+import static org.jooq.impl.DSL.table;
+import static org.junit.jupiter.api.Assertions.*;
+
+class SQLUserDAOTest {
+    @TempDir
+    Path directory;
+    private DatabaseConnection connection;
+    private HashingExecutor hashingExecutor;
+    private AuthenticationCache authenticationCache;
+    private UserDAO userDAO;
+
+    @BeforeEach
+    void open() throws Exception {
+        connection = DatabaseConnection.generatePooled("jdbc:sqlite:" + directory.resolve("users.db"), 2);
+        SQLBackend backend = new SQLBackend(connection);
+        backend.initializer().init(connection);
+        MetricRegistry metrics = new MetricRegistry();
+        Hasher hasher = new Hasher(24, 16, new SecureRandom(), new Argon2IDConfig(2, 66536, 1));
+        hashingExecutor = new HashingExecutor(hasher, 1, 4, metrics);
+        authenticationCache = new AuthenticationCache(100, Duration.ofMinutes(5), new SecureRandom(), metrics);
+        SQLTagDAO tagDAO = backend.tagDAO(null, null);
+        userDAO = backend.userDAO(hashingExecutor, backend.entityDAO(tagDAO, null), authenticationCache);
+    }
+
+    @AfterEach
+    void close() throws Exception {
+        hashingExecutor.stop();
+        connection.close();
+    }
+
+    /**
+     * Change the role of a user behind the back of the user DAO, as another instance would.
+     */
+    private void setRoleDirectly(String username, String role) {
+        connection.context()
+                .update(table("users"))
+                .set(field("role"), role)
+                .where(field("username").eq(username))
+                .execute();
+    }
+
+    @Test
+    void added() throws Exception {
+        userDAO.addUser("alice", "password");
+        UserCredentials credentials = userDAO.getCredentials("alice");
+        assertEquals("alice", credentials.username());
+        assertEquals(Set.of(Roles.USER), credentials.roles());
+        assertTrue(hashingExecutor.verify("password", credentials.salt(), credentials.hash()));
+        assertFalse(hashingExecutor.verify("another_password", credentials.salt(), credentials.hash()));
+        assertThrows(UsernameAlreadyInUseException.class, () -> userDAO.addUser("alice", "password"));
+        assertThrows(UserDoesNotExistException.class, () -> userDAO.getCredentials("bob"));
+    }
+
+    @Test
+    void cached() throws Exception {
+        userDAO.addUser("alice", "password");
+        UserCredentials credentials = userDAO.getCredentials("alice");
+        setRoleDirectly("alice", Roles.ADMIN);
+        assertSame(credentials, userDAO.getCredentials("alice"));
+        assertEquals(Set.of(Roles.USER), userDAO.getUser("alice").getRoles());
+    }
+
+    @Test
+    void invalidation() throws Exception {
+        userDAO.addUser("alice", "password");
+        authenticationCache.put(userDAO.getUser("alice"), "password", authenticationCache.stamp());
+
+        userDAO.setRole("alice", Roles.ADMIN);
+        assertEquals(Set.of(Roles.ADMIN), userDAO.getCredentials("alice").roles());
+        assertFalse(authenticationCache.get("alice", "password").isPresent());
+
+        userDAO.removeUser("alice");
+        assertThrows(UserDoesNotExistException.class, () -> userDAO.getCredentials("alice"));
+        assertThrows(UserDoesNotExistException.class, () -> userDAO.removeUser("alice"));
+    }
+}
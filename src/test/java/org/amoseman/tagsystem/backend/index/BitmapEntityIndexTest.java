@@ -0,0 +1,193 @@
+package org.amoseman.tagsystem.backend.index;
+
+import com.google.common.collect.ImmutableList;
+import org.amoseman.tagsystem.backend.dao.RetrievalOperator;
+import org.amoseman.tagsystem.backend.dao.sql.DatabaseConnection;
+import org.amoseman.tagsystem.backend.dao.sql.SQLBackend;
+import org.amoseman.tagsystem.backend.dao.sql.SQLEntityDAO;
+import org.amoseman.tagsystem.backend.dao.sql.SQLTagDAO;
+import org.amoseman.tagsystem.backend.exception.entity.EntityDoesNotExistException;
+import org.amoseman.tagsystem.backend.exception.entity.TagAlreadyOnEntityException;
+import org.amoseman.tagsystem.backend.pojo.EntityPage;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BitmapEntityIndexTest {
+    private static final String OWNER = "alice";
+    private static final int THREADS = 4;
+    @TempDir
+    Path directory;
+    private DatabaseConnection connection;
+    private TagHierarchyIndex hierarchy;
+    private SQLTagDAO tagDAO;
+    private SQLEntityDAO sql;
+    private BitmapEntityIndex index;
+
+    @BeforeEach
+    void open() throws Exception {
+        connection = DatabaseConnection.generatePooled("jdbc:sqlite:" + directory.resolve("index.db"), 2);
+        SQLBackend backend = new SQLBackend(connection);
+        backend.initializer().init(connection);
+        hierarchy = new TagHierarchyIndex();
+        tagDAO = backend.tagDAO(hierarchy, null);
+        for (String tag : List.of("animal", "mammal", "feline", "pet")) {
+            tagDAO.create(tag);
+        }
+        tagDAO.addChild("animal", "mammal");
+        tagDAO.addChild("mammal", "feline");
+        sql = backend.entityDAO(tagDAO, hierarchy);
+        index = new BitmapEntityIndex(sql, hierarchy);
+        tagDAO.onDelete(index::clearTag);
+    }
+
+    @AfterEach
+    void close() throws Exception {
+        connection.close();
+    }
+
+    /**
+     * Check that the index, and an index freshly loaded from the database, match the same entities as SQL.
+     */
+    private void assertAgrees(RetrievalOperator operator, String... tags) {
+        ImmutableList<String> query = ImmutableList.copyOf(tags);
+        ImmutableList<String> expected = sql.retrieve(OWNER, operator, query);
+        ImmutableList<String> actual = index.retrieve(OWNER, operator, query);
+        assertEquals(expected.size(), actual.size(), query.toString());
+        assertEquals(Set.copyOf(expected), Set.copyOf(actual), query.toString());
+        assertEquals(expected.size(), index.count(OWNER, operator, query), query.toString());
+        assertEquals(Set.copyOf(expected), Set.copyOf(new BitmapEntityIndex(sql, hierarchy).retrieve(OWNER, operator, query)), query.toString());
+    }
+
+    private void assertAgreesOnEveryTag() {
+        for (String tag : List.of("animal", "mammal", "feline", "pet")) {
+            assertAgrees(RetrievalOperator.UNION, tag);
+        }
+    }
+
+    @Test
+    void retrieval() throws Exception {
+        index.create(OWNER, 5, List.of("feline"));
+        index.create(OWNER, 3, List.of("mammal"));
+        index.create(OWNER, 2, List.of("pet"));
+        String both = index.create(OWNER);
+        index.addTags(OWNER, Map.of(both, List.of("feline", "pet")));
+        index.create(OWNER);
+
+        assertAgrees(RetrievalOperator.UNION, "animal");
+        assertAgrees(RetrievalOperator.UNION, "mammal", "pet");
+        assertAgrees(RetrievalOperator.UNION, "animal", "missing");
+        assertAgrees(RetrievalOperator.INTERSECTION, "mammal", "pet");
+        assertAgrees(RetrievalOperator.INTERSECTION, "animal", "feline", "pet");
+        assertAgrees(RetrievalOperator.INTERSECTION, "animal", "missing");
+        assertEquals(List.of(both), index.retrieve(OWNER, RetrievalOperator.INTERSECTION, ImmutableList.of("feline", "pet")));
+        assertTrue(index.retrieve("bob", RetrievalOperator.UNION, ImmutableList.of("animal")).isEmpty());
+    }
+
+    @Test
+    void mirroring() throws Exception {
+        // loaded before any write, so that every write is mirrored rather than loaded
+        assertAgreesOnEveryTag();
+        ImmutableList<String> uuids = index.create(OWNER, 4, List.of("mammal"));
+        assertAgreesOnEveryTag();
+
+        index.addTag(OWNER, uuids.get(0), "feline");
+        index.addTags(OWNER, Map.of(uuids.get(1), List.of("pet", "feline"), uuids.get(2), List.of("pet")));
+        assertAgreesOnEveryTag();
+
+        index.removeTag(OWNER, uuids.get(1), "pet");
+        index.remove(OWNER, uuids.get(2));
+        assertAgreesOnEveryTag();
+        assertAgrees(RetrievalOperator.INTERSECTION, "mammal", "pet");
+
+        index.removeAll(OWNER);
+        assertAgreesOnEveryTag();
+        assertTrue(index.retrieve(OWNER, RetrievalOperator.UNION, ImmutableList.of("animal")).isEmpty());
+    }
+
+    @Test
+    void deletion() throws Exception {
+        ImmutableList<String> pets = index.create(OWNER, 3, List.of("pet"));
+        assertEquals(3, index.count(OWNER, RetrievalOperator.UNION, ImmutableList.of("pet")));
+
+        tagDAO.delete("pet");
+        tagDAO.create("pet");
+        assertAgrees(RetrievalOperator.UNION, "pet");
+        assertTrue(index.retrieve(OWNER, RetrievalOperator.UNION, ImmutableList.of("pet")).isEmpty());
+
+        index.addTag(OWNER, pets.get(0), "pet");
+        assertEquals(List.of(pets.get(0)), index.retrieve(OWNER, RetrievalOperator.UNION, ImmutableList.of("pet")));
+        assertAgrees(RetrievalOperator.UNION, "pet");
+    }
+
+    @Test
+    void paging() throws Exception {
+        ImmutableList<String> uuids = index.create(OWNER, 25, List.of("feline"));
+        index.remove(OWNER, uuids.get(3));
+
+        List<String> paged = new ArrayList<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            EntityPage page = index.retrieve(OWNER, RetrievalOperator.UNION, ImmutableList.of("animal"), cursor, 10);
+            assertTrue(page.entities().size() <= 10);
+            paged.addAll(page.entities());
+            cursor = page.cursor();
+            pages++;
+        }
+        while (null != cursor);
+        assertEquals(3, pages);
+        assertEquals(24, paged.size());
+        assertEquals(Set.copyOf(sql.retrieve(OWNER, RetrievalOperator.UNION, ImmutableList.of("animal"))), Set.copyOf(paged));
+
+        List<String> streamed = new ArrayList<>();
+        index.retrieveEach(OWNER, RetrievalOperator.UNION, ImmutableList.of("animal"), streamed::add);
+        assertEquals(paged, streamed);
+        assertThrows(IllegalArgumentException.class, () -> index.retrieve(OWNER, RetrievalOperator.UNION, ImmutableList.of("animal"), "invalid", 10));
+    }
+
+    @Test
+    void concurrent() throws Exception {
+        ImmutableList<String> uuids = index.create(OWNER, 10, List.of("mammal"));
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int thread = 0; thread < THREADS; thread++) {
+            boolean adding = 0 == thread % 2;
+            futures.add(executor.submit(() -> {
+                for (int round = 0; round < 20; round++) {
+                    for (String uuid : uuids) {
+                        try {
+                            if (adding) {
+                                index.addTag(OWNER, uuid, "pet");
+                            }
+                            else {
+                                index.removeTag(OWNER, uuid, "pet");
+                            }
+                        }
+                        catch (TagAlreadyOnEntityException | EntityDoesNotExistException ignored) {
+
+                        }
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        assertAgreesOnEveryTag();
+    }
+}
@@ -0,0 +1,109 @@
+package org.amoseman.tagsystem.backend.index;
+
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableList;
+import org.amoseman.tagsystem.backend.dao.RetrievalOperator;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RetrievalCacheTest {
+    private static final ImmutableList<String> ENTITIES = ImmutableList.of("a", "b");
+
+    private static RetrievalCache cache() {
+        TagHierarchyIndex hierarchy = new TagHierarchyIndex();
+        hierarchy.addChild("animal", "mammal");
+        hierarchy.addChild("mammal", "feline");
+        return new RetrievalCache(100, hierarchy, new MetricRegistry());
+    }
+
+    private static void put(RetrievalCache cache, String owner, String... tags) {
+        cache.put(owner, RetrievalOperator.UNION, ImmutableList.copyOf(tags), ENTITIES, cache.stamp(owner));
+    }
+
+    private static boolean cached(RetrievalCache cache, String owner, String... tags) {
+        return cache.get(owner, RetrievalOperator.UNION, ImmutableList.copyOf(tags)).isPresent();
+    }
+
+    @Test
+    void normalized() {
+        RetrievalCache cache = cache();
+        put(cache, "alice", "mammal", "animal");
+        assertTrue(cached(cache, "alice", "animal", "mammal", "animal"));
+        assertFalse(cached(cache, "bob", "animal", "mammal"));
+        assertFalse(cache.get("alice", RetrievalOperator.INTERSECTION, ImmutableList.of("animal", "mammal")).isPresent());
+    }
+
+    @Test
+    void invalidation() {
+        RetrievalCache cache = cache();
+        put(cache, "alice", "animal");
+        put(cache, "alice", "mammal");
+        put(cache, "alice", "pet");
+        put(cache, "bob", "animal");
+
+        cache.invalidate("alice", "mammal");
+        assertFalse(cached(cache, "alice", "animal"));
+        assertFalse(cached(cache, "alice", "mammal"));
+        assertTrue(cached(cache, "alice", "pet"));
+        assertTrue(cached(cache, "bob", "animal"));
+
+        cache.invalidateHierarchy("feline");
+        assertFalse(cached(cache, "bob", "animal"));
+        assertTrue(cached(cache, "alice", "pet"));
+    }
+
+    @Test
+    void replaced() {
+        RetrievalCache cache = cache();
+        put(cache, "alice", "animal");
+        put(cache, "alice", "animal");
+        put(cache, "bob", "pet");
+        cache.invalidate("alice", "feline");
+        assertFalse(cached(cache, "alice", "animal"));
+
+        cache.invalidateOwner("bob");
+        assertFalse(cached(cache, "bob", "pet"));
+    }
+
+    @Test
+    void stamp() {
+        RetrievalCache cache = cache();
+        long stamp = cache.stamp("alice");
+        long other = cache.stamp("bob");
+        cache.invalidate("alice", "pet");
+        cache.put("alice", RetrievalOperator.UNION, ImmutableList.of("pet"), ENTITIES, stamp);
+        cache.put("bob", RetrievalOperator.UNION, ImmutableList.of("pet"), ENTITIES, other);
+        assertFalse(cached(cache, "alice", "pet"));
+        assertTrue(cached(cache, "bob", "pet"));
+    }
+
+    @Test
+    void retired() {
+        RetrievalCache cache = cache();
+        long stamp = cache.stamp("alice");
+        put(cache, "alice", "pet");
+        // drops the index of alice, whose stamp must still reject a result retrieved before the invalidation
+        cache.invalidate("alice", "pet");
+        cache.put("alice", RetrievalOperator.UNION, ImmutableList.of("pet"), ENTITIES, stamp);
+        assertFalse(cached(cache, "alice", "pet"));
+
+        put(cache, "alice", "pet");
+        assertTrue(cached(cache, "alice", "pet"));
+        cache.invalidateOwner("alice");
+        assertFalse(cached(cache, "alice", "pet"));
+    }
+
+    @Test
+    void weighed() {
+        RetrievalCache cache = cache();
+        ImmutableList.Builder<String> large = ImmutableList.builder();
+        for (int i = 0; i < 10; i++) {
+            large.add(Integer.toString(i));
+        }
+        cache.put("alice", RetrievalOperator.UNION, ImmutableList.of("animal"), large.build(), cache.stamp("alice"));
+        assertFalse(cached(cache, "alice", "animal"));
+        put(cache, "alice", "animal");
+        assertTrue(cached(cache, "alice", "animal"));
+    }
+}
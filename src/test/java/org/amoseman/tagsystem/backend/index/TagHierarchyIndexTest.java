@@ -0,0 +1,66 @@
+package org.amoseman.tagsystem.backend.index;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TagHierarchyIndexTest {
+    @Test
+    void closures() {
+        TagHierarchyIndex hierarchy = new TagHierarchyIndex();
+        hierarchy.addChild("animal", "mammal");
+        hierarchy.addChild("mammal", "feline");
+        hierarchy.addChild("animal", "reptile");
+        hierarchy.addChild("pet", "feline");
+
+        ImmutableList<String> descendants = hierarchy.getDescendants("animal");
+        assertTrue(descendants.containsAll(ImmutableList.of("mammal", "feline", "reptile")));
+        assertEquals(3, descendants.size());
+        ImmutableList<String> ancestors = hierarchy.getAncestors("feline");
+        assertTrue(ancestors.containsAll(ImmutableList.of("mammal", "animal", "pet")));
+        assertEquals(3, ancestors.size());
+        assertTrue(hierarchy.getDescendants("unknown").isEmpty());
+
+        assertTrue(hierarchy.createsLoop("feline", "animal"));
+        assertTrue(hierarchy.createsLoop("animal", "animal"));
+        assertFalse(hierarchy.createsLoop("animal", "feline"));
+    }
+
+    @Test
+    void removal() {
+        TagHierarchyIndex hierarchy = new TagHierarchyIndex();
+        hierarchy.addChild("animal", "mammal");
+        hierarchy.addChild("mammal", "feline");
+        hierarchy.addChild("animal", "feline");
+
+        hierarchy.removeChild("mammal", "feline");
+        assertTrue(hierarchy.isDescendant("animal", "feline"));
+        assertFalse(hierarchy.isDescendant("mammal", "feline"));
+
+        hierarchy.removeChild("animal", "feline");
+        assertFalse(hierarchy.isDescendant("animal", "feline"));
+        assertTrue(hierarchy.getAncestors("feline").isEmpty());
+
+        hierarchy.addChild("mammal", "feline");
+        hierarchy.remove("mammal");
+        assertTrue(hierarchy.getDescendants("animal").isEmpty());
+        assertTrue(hierarchy.getAncestors("feline").isEmpty());
+    }
+
+    @Test
+    void deep() {
+        TagHierarchyIndex hierarchy = new TagHierarchyIndex();
+        int depth = 5_000;
+        for (int i = 0; i < depth; i++) {
+            hierarchy.addChild("tag" + i, "tag" + (i + 1));
+        }
+        assertTrue(hierarchy.createsLoop("tag" + depth, "tag0"));
+        assertFalse(hierarchy.createsLoop("tag0", "tag" + depth));
+
+        // removing an edge near the bottom recomputes the closure of every tag above it
+        hierarchy.removeChild("tag" + (depth - 1), "tag" + depth);
+        assertEquals(depth - 1, hierarchy.getDescendants("tag0").size());
+        assertFalse(hierarchy.createsLoop("tag" + depth, "tag0"));
+    }
+}
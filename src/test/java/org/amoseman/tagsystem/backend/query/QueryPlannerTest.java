@@ -0,0 +1,65 @@
+package org.amoseman.tagsystem.backend.query;
+
+import com.google.common.collect.ImmutableList;
+import org.amoseman.tagsystem.backend.exception.query.InvalidQueryException;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QueryPlannerTest {
+    private static final Map<String, Long> ESTIMATES = Map.of("cat", 100L, "dog", 10L, "pet", 1000L, "stray", 5L);
+    private final QueryPlanner planner = new QueryPlanner(tag -> ESTIMATES.getOrDefault(tag, 0L), 10_000);
+
+    private static TagQuery tag(String name) {
+        return new TagQuery.Tag(name);
+    }
+
+    @Test
+    void parse() throws InvalidQueryException {
+        assertEquals(
+                new TagQuery.And(ImmutableList.of(
+                        new TagQuery.Or(ImmutableList.of(tag("cat"), tag("dog"))),
+                        new TagQuery.Not(tag("stray animal"))
+                )),
+                QueryParser.parse("(cat OR dog) AND NOT \"stray animal\"")
+        );
+        assertEquals(
+                new TagQuery.Or(ImmutableList.of(tag("cat"), new TagQuery.And(ImmutableList.of(tag("dog"), tag("AND"))))),
+                QueryParser.parse("cat OR dog AND \"AND\"")
+        );
+        assertThrows(InvalidQueryException.class, () -> QueryParser.parse(""));
+        assertThrows(InvalidQueryException.class, () -> QueryParser.parse("cat AND"));
+        assertThrows(InvalidQueryException.class, () -> QueryParser.parse("(cat"));
+        assertThrows(InvalidQueryException.class, () -> QueryParser.parse("cat)"));
+        assertThrows(InvalidQueryException.class, () -> QueryParser.parse("\"cat"));
+    }
+
+    @Test
+    void plan() throws InvalidQueryException {
+        assertEquals(
+                new TagQuery.And(ImmutableList.of(tag("stray"), tag("dog"), tag("cat"))),
+                planner.plan(QueryParser.parse("cat AND (dog AND stray)"))
+        );
+        assertEquals(
+                new TagQuery.And(ImmutableList.of(
+                        new TagQuery.Or(ImmutableList.of(tag("cat"), tag("dog"))),
+                        tag("pet"),
+                        new TagQuery.Not(tag("stray"))
+                )),
+                planner.plan(QueryParser.parse("(cat OR dog) AND NOT stray AND pet"))
+        );
+        assertEquals(tag("cat"), planner.plan(QueryParser.parse("NOT NOT cat")));
+        assertEquals(tag("cat"), planner.plan(QueryParser.parse("cat OR unknown")));
+        assertEquals(new TagQuery.None(), planner.plan(QueryParser.parse("cat AND (unknown OR other)")));
+        assertEquals(new TagQuery.All(), planner.plan(QueryParser.parse("NOT unknown")));
+    }
+
+    @Test
+    void universe() throws InvalidQueryException {
+        assertFalse(QueryPlanner.requiresUniverse(planner.plan(QueryParser.parse("cat AND NOT dog"))));
+        assertTrue(QueryPlanner.requiresUniverse(planner.plan(QueryParser.parse("NOT dog"))));
+        assertTrue(QueryPlanner.requiresUniverse(planner.plan(QueryParser.parse("cat OR NOT dog"))));
+    }
+}